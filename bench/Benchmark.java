@@ -0,0 +1,310 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Micro-benchmarks of the indexing and query paths: PorterStemmer.stem,
+ * processQuery(), booleanRetrieve(), the same AND query as a phrase,
+ * rankRetrieve() and its exhaustive counterpart, index() and computeTFIDF().
+ * Run them with "ant bench".
+ *
+ * Every benchmark runs over synthetic corpora of each size in bench.docs.
+ * Document words are drawn from a Zipfian distribution over a vocabulary of
+ * bench.vocab words, so a few words are very common and most are rare, like
+ * in real text.  Queries are drawn from each mix in bench.mix (the 100 most
+ * common words, the least common half of the vocabulary, the same
+ * distribution as the documents, or runs of consecutive words of the
+ * documents) with each number of words in bench.terms.
+ * The corpus and queries only depend on bench.seed.
+ *
+ * Each benchmark is first run for bench.warmup seconds, then measured for
+ * bench.iterations iterations of bench.time seconds.  It reports operations
+ * per second and the average time per operation, with the standard deviation
+ * over the iterations, and the bytes allocated and garbage collections per
+ * operation, and for ranked retrieval the postings decoded per operation.
+ * bench.paths limits the run to some of the benchmarks.
+ */
+public class Benchmark {
+  static final String[] PATHS = { "stem", "processQuery", "booleanRetrieve", "phraseRetrieve",
+                                  "rankRetrieve", "rankExhaustive", "index", "computeTFIDF" };
+
+  static final long SEED = Long.getLong("bench.seed", 42);
+  static final int VOCAB = Integer.getInteger("bench.vocab", 50000);
+  static final int DOC_LENGTH = Integer.getInteger("bench.docLength", 200);
+  static final int NUM_QUERIES = Integer.getInteger("bench.queries", 1000);
+  static final int[] DOCS = ints(System.getProperty("bench.docs", "1000,10000,100000"));
+  static final int[] TERMS = ints(System.getProperty("bench.terms", "1,3,10"));
+  static final String[] MIXES = System.getProperty("bench.mix", "common,rare,zipf,phrase").split(",");
+  static final List<String> RUN_PATHS =
+      Arrays.asList(System.getProperty("bench.paths", join(PATHS)).split(","));
+  static final double WARMUP = Double.parseDouble(System.getProperty("bench.warmup", "1"));
+  static final int ITERATIONS = Integer.getInteger("bench.iterations", 5);
+  static final double TIME = Double.parseDouble(System.getProperty("bench.time", "1"));
+
+  static final PrintStream STDOUT = System.out;
+  static final PrintStream NULL = new PrintStream(new OutputStream() {
+    public void write(int b) {
+    }
+  });
+
+  // results are folded in here so the JIT cannot drop the work
+  static long sink;
+
+  // postings decoded by the ranked retrieval benchmarks
+  static long postings;
+
+  /**
+   * One benchmarked operation.  run() is called with 0, 1, 2... and returns
+   * something that depends on the work done.
+   */
+  static abstract class Op {
+    abstract long run(int i);
+  }
+
+  static int[] ints(String list) {
+    String[] fields = list.split(",");
+    int[] values = new int[fields.length];
+    for (int i = 0; i < fields.length; i++)
+      values[i] = Integer.parseInt(fields[i].trim());
+    return values;
+  }
+
+  static String join(String[] words) {
+    StringBuilder s = new StringBuilder();
+    for (String word : words) {
+      if (s.length() > 0)
+        s.append(',');
+      s.append(word);
+    }
+    return s.toString();
+  }
+
+  /**
+   * An IRSystem holding a synthetic corpus of stemmed documents, not yet
+   * indexed.
+   */
+  static IRSystem corpus(int numDocs, String[] vocab, String[] stems) {
+    Random random = new Random(SEED);
+    CorpusGenerator.Zipf zipf = new CorpusGenerator.Zipf(vocab.length, 1.0);
+    IRSystem irSys = new IRSystem();
+    irSys.documents = new ArrayList<ArrayList<String>>();
+    for (int d = 0; d < numDocs; d++) {
+      // lengths are spread evenly between half and one and a half times the mean
+      int length = DOC_LENGTH / 2 + random.nextInt(DOC_LENGTH + 1);
+      ArrayList<String> document = new ArrayList<String>(length);
+      for (int i = 0; i < length; i++)
+        document.add(stems[zipf.next(random)]);
+      irSys.documents.add(document);
+      irSys.titles.add("Doc" + d);
+    }
+    return irSys;
+  }
+
+  /**
+   * Queries of the given mix.  Phrases are taken from the stemmed documents
+   * of the corpus, and unstemmed maps each stem back to a word that stems
+   * to it.
+   */
+  static String[] queries(String mix, int terms, String[] vocab, IRSystem corpus,
+                          Map<String, String> unstemmed) {
+    Random random = new Random(SEED + 31 * terms + mix.hashCode());
+    CorpusGenerator.Zipf zipf = new CorpusGenerator.Zipf(vocab.length, 1.0);
+    String[] queries = new String[NUM_QUERIES];
+    for (int q = 0; q < queries.length; q++) {
+      StringBuilder query = new StringBuilder();
+      List<String> document = corpus.documents.get(random.nextInt(corpus.documents.size()));
+      int start = random.nextInt(Math.max(document.size() - terms, 0) + 1);
+      for (int i = 0; i < terms; i++) {
+        if (mix.equals("phrase")) {
+          if (start + i < document.size()) {
+            if (i > 0)
+              query.append(' ');
+            query.append(unstemmed.get(document.get(start + i)));
+          }
+          continue;
+        }
+        int rank;
+        if (mix.equals("common"))
+          rank = random.nextInt(Math.min(100, vocab.length));
+        else if (mix.equals("rare"))
+          rank = vocab.length / 2 + random.nextInt(vocab.length - vocab.length / 2);
+        else
+          rank = zipf.next(random);
+        if (i > 0)
+          query.append(' ');
+        query.append(vocab[rank]);
+      }
+      queries[q] = query.toString();
+    }
+    return queries;
+  }
+
+  static long allocatedBytes() {
+    return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+        .getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  static long gcCount() {
+    long count = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+      count += Math.max(gc.getCollectionCount(), 0);
+    return count;
+  }
+
+  /**
+   * Runs op for about the given number of seconds, at least once, and
+   * returns {operations, nanoseconds, bytes allocated, collections,
+   * postings decoded}.
+   */
+  static long[] measure(Op op, double seconds) {
+    long limit = (long) (seconds * 1e9);
+    long gcs = gcCount();
+    long bytes = allocatedBytes();
+    long decoded = postings;
+    long start = System.nanoTime();
+    long elapsed;
+    int ops = 0;
+    do {
+      sink += op.run(ops++);
+      elapsed = System.nanoTime() - start;
+    } while (elapsed < limit);
+    return new long[] { ops, elapsed, allocatedBytes() - bytes, gcCount() - gcs, postings - decoded };
+  }
+
+  static void bench(String path, String params, Op op) {
+    if (!RUN_PATHS.contains(path))
+      return;
+    measure(op, WARMUP);
+    double[] nanosPerOp = new double[ITERATIONS];
+    long ops = 0;
+    long nanos = 0;
+    long bytes = 0;
+    long gcs = 0;
+    long decoded = 0;
+    for (int i = 0; i < ITERATIONS; i++) {
+      long[] m = measure(op, TIME);
+      nanosPerOp[i] = (double) m[1] / m[0];
+      ops += m[0];
+      nanos += m[1];
+      bytes += m[2];
+      gcs += m[3];
+      decoded += m[4];
+    }
+    double mean = (double) nanos / ops;
+    double variance = 0;
+    for (double t : nanosPerOp)
+      variance += (t - mean) * (t - mean);
+    double stddev = ITERATIONS > 1 ? Math.sqrt(variance / (ITERATIONS - 1)) : 0;
+    STDOUT.println(String.format("%-16s %-28s %12.1f %12.3f %10.3f %12.0f %8.4f %12.1f",
+                                 path, params, ops / (nanos / 1e9), mean / 1e3, stddev / 1e3,
+                                 (double) bytes / ops, (double) gcs / ops, (double) decoded / ops));
+  }
+
+  public static void main(String[] args) {
+    String[] vocab = new String[VOCAB];
+    String[] stems = new String[VOCAB];
+    Map<String, String> unstemmed = new HashMap<String, String>();
+    PorterStemmer stemmer = new PorterStemmer();
+    for (int rank = 0; rank < VOCAB; rank++) {
+      vocab[rank] = CorpusGenerator.word(rank);
+      stems[rank] = stemmer.stem(vocab[rank]);
+      if (!unstemmed.containsKey(stems[rank]))
+        unstemmed.put(stems[rank], vocab[rank]);
+    }
+
+    STDOUT.println(String.format("%-16s %-28s %12s %12s %10s %12s %8s %12s",
+                                 "benchmark", "params", "ops/s", "us/op", "+-us", "B/op", "gc/op",
+                                 "postings/op"));
+
+    final char[][] words = new char[VOCAB][];
+    for (int rank = 0; rank < VOCAB; rank++)
+      words[rank] = vocab[rank].toCharArray();
+    final PorterStemmer benchStemmer = new PorterStemmer();
+    bench("stem", "vocab=" + VOCAB, new Op() {
+      long run(int i) {
+        char[] w = words[i % words.length];
+        benchStemmer.stem(w, 0, w.length);
+        return benchStemmer.toString().length();
+      }
+    });
+
+    for (int numDocs : DOCS) {
+      // index() and computeTFIDF() print progress, which is not measured
+      System.setOut(NULL);
+      final IRSystem irSys = corpus(numDocs, vocab, stems);
+      irSys.index();
+      irSys.computeTFIDF();
+      System.setOut(STDOUT);
+      final Searcher searcher = irSys.searcher();
+
+      for (String mix : MIXES) {
+        for (int terms : TERMS) {
+          String params = "docs=" + numDocs + " mix=" + mix + " terms=" + terms;
+          final String[] queries = queries(mix, terms, vocab, irSys, unstemmed);
+          final List<ArrayList<String>> stemmed = new ArrayList<ArrayList<String>>();
+          final List<List<List<String>>> phrases = new ArrayList<List<List<String>>>();
+          for (String query : queries) {
+            stemmed.add(searcher.processQuery(query));
+            phrases.add(Collections.<List<String>>singletonList(stemmed.get(stemmed.size() - 1)));
+          }
+
+          bench("processQuery", params, new Op() {
+            long run(int i) {
+              return searcher.processQuery(queries[i % queries.length]).size();
+            }
+          });
+          bench("booleanRetrieve", params, new Op() {
+            long run(int i) {
+              return searcher.booleanRetrieve(stemmed.get(i % stemmed.size())).size();
+            }
+          });
+          bench("phraseRetrieve", params, new Op() {
+            long run(int i) {
+              int q = i % stemmed.size();
+              return searcher.booleanRetrieve(stemmed.get(q), phrases.get(q)).size();
+            }
+          });
+          bench("rankRetrieve", params, new Op() {
+            long run(int i) {
+              TopDocs top = searcher.rankRetrieve(stemmed.get(i % stemmed.size()), IRSystem.NUM_RESULTS);
+              postings += top.postingsDecoded();
+              return top.size();
+            }
+          });
+          bench("rankExhaustive", params, new Op() {
+            long run(int i) {
+              TopDocs top = searcher.rankRetrieveExhaustive(stemmed.get(i % stemmed.size()),
+                                                            IRSystem.NUM_RESULTS);
+              postings += top.postingsDecoded();
+              return top.size();
+            }
+          });
+        }
+      }
+
+      String params = "docs=" + numDocs;
+      System.setOut(NULL);
+      bench("index", params, new Op() {
+        long run(int i) {
+          irSys.index();
+          return irSys.invertedIndex.size();
+        }
+      });
+      bench("computeTFIDF", params, new Op() {
+        long run(int i) {
+          irSys.computeTFIDF();
+          return irSys.numDocs;
+        }
+      });
+      System.setOut(STDOUT);
+    }
+  }
+}
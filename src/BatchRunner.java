@@ -0,0 +1,167 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a file of queries, one per line, over a number of threads and writes
+ * the results to a file.  Ranked queries go through queryRank() and keep the
+ * k best documents; boolean queries go through queryRetrieve() and keep all
+ * the matches.  Each result is a tab separated line:
+ *
+ *   query number, rank, document index, score ("-" for boolean queries), title
+ *
+ * A query that throws an exception gets a single line instead, and the
+ * others are run and written as usual:
+ *
+ *   query number, "error", the exception
+ *
+ * Queries are numbered from 1 in file order, and results are written in that
+ * order whatever thread answered them.  Every query is timed on its own, and
+ * the report gives the throughput over the whole run and the latency
+ * percentiles of the queries.
+ */
+public class BatchRunner {
+  final IRSystem irSys;
+  final int threads;
+  final boolean ranked;
+  final int k;
+
+  // filled in by run()
+  long[] latencies;  // nanoseconds, in query order
+  long elapsed;  // nanoseconds for the whole batch
+  int failed;  // queries that threw an exception
+
+  public BatchRunner(IRSystem irSys, int threads, boolean ranked, int k) {
+    if (threads < 1)
+      throw new IllegalArgumentException("threads must be positive: " + threads);
+    this.irSys = irSys;
+    this.threads = threads;
+    this.ranked = ranked;
+    this.k = k;
+  }
+
+  static List<String> readQueries(File file) throws IOException {
+    BufferedReader input = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+    try {
+      List<String> queries = new ArrayList<String>();
+      String line;
+      while ((line = input.readLine()) != null) {
+        line = line.trim();
+        if (!line.isEmpty())
+          queries.add(line);
+      }
+      return queries;
+    } finally {
+      input.close();
+    }
+  }
+
+  /**
+   * Runs the queries of one file and writes their results to another.
+   */
+  public void run(File queryFile, File resultFile) throws IOException, InterruptedException {
+    final List<String> queries = readQueries(queryFile);
+    final String[] results = new String[queries.size()];
+    final long[] latencies = new long[queries.size()];
+    final AtomicInteger next = new AtomicInteger();
+    final AtomicInteger failed = new AtomicInteger();
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    long start = System.nanoTime();
+    for (int t = 0; t < threads; t++) {
+      executor.execute(new Runnable() {
+        public void run() {
+          StringBuilder result = new StringBuilder();
+          int i;
+          while ((i = next.getAndIncrement()) < results.length) {
+            result.setLength(0);
+            long queryStart = System.nanoTime();
+            try {
+              Searcher searcher = irSys.searcher();
+              if (ranked) {
+                TopDocs top = searcher.queryRank(queries.get(i), k);
+                latencies[i] = System.nanoTime() - queryStart;
+                for (int rank = 0; rank < top.size(); rank++)
+                  appendResult(result, i + 1, rank + 1, top.doc(rank), String.valueOf(top.score(rank)),
+                               searcher.getTitle(top.doc(rank)));
+              } else {
+                ArrayList<Integer> docs = searcher.queryRetrieve(queries.get(i));
+                latencies[i] = System.nanoTime() - queryStart;
+                for (int rank = 0; rank < docs.size(); rank++)
+                  appendResult(result, i + 1, rank + 1, docs.get(rank), "-",
+                               searcher.getTitle(docs.get(rank)));
+              }
+            } catch (RuntimeException e) {
+              latencies[i] = System.nanoTime() - queryStart;
+              failed.incrementAndGet();
+              result.setLength(0);
+              result.append(i + 1).append("\terror\t").append(e).append('\n');
+            }
+            results[i] = result.toString();
+          }
+        }
+      });
+    }
+    executor.shutdown();
+    executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    elapsed = System.nanoTime() - start;
+    this.latencies = latencies;
+    this.failed = failed.get();
+
+    BufferedWriter output = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(resultFile), "UTF-8"));
+    try {
+      for (String result : results)
+        output.write(result);
+    } finally {
+      output.close();
+    }
+  }
+
+  static void appendResult(StringBuilder result, int query, int rank, int doc, String score, String title) {
+    result.append(query).append('\t').append(rank).append('\t').append(doc).append('\t')
+          .append(score).append('\t').append(title).append('\n');
+  }
+
+  /**
+   * The latency below which the given fraction of the queries finished, in
+   * nanoseconds, by the nearest-rank method.  sorted must be in increasing
+   * order.
+   */
+  static long percentile(long[] sorted, double fraction) {
+    if (sorted.length == 0)
+      return 0;
+    int rank = (int) Math.ceil(fraction * sorted.length);
+    return sorted[Math.max(rank, 1) - 1];
+  }
+
+  /**
+   * Prints the throughput and latency percentiles of the last run.
+   */
+  public void report(PrintStream out) {
+    long[] sorted = latencies.clone();
+    Arrays.sort(sorted);
+    double seconds = elapsed / 1e9;
+    out.println(String.format("%d queries, %d threads, %.3f s, %.1f queries/s",
+                              sorted.length, threads, seconds, sorted.length / seconds));
+    out.println(String.format("latency ms: p50 %.3f, p95 %.3f, p99 %.3f, max %.3f",
+                              percentile(sorted, 0.50) / 1e6, percentile(sorted, 0.95) / 1e6,
+                              percentile(sorted, 0.99) / 1e6, percentile(sorted, 1.0) / 1e6));
+    if (failed > 0)
+      out.println(failed + " queries failed");
+    if (irSys.resultCache != null)
+      out.println("Result cache: " + irSys.resultCache);
+  }
+}
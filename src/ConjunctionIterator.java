@@ -0,0 +1,169 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Iterates over the live documents of a segment that are in the postings of
+ * all the given terms and contain all the given phrases, in increasing
+ * order.  A phrase is given as the term ids of its words, in order, and a
+ * document contains it if the words occur one right after the other.
+ *
+ * Documents are matched first and phrases checked after.  Every word of a
+ * phrase gets a postings iterator of its own, next to those of the other
+ * terms, and the iterators are visited from the rarest to the most common:
+ * each document of the rarest one is a candidate that the others advance()
+ * to, and a posting that overshoots the candidate moves the candidate
+ * forward instead.  Skip entries let advance() jump over most of a common
+ * term's postings, so the cost stays close to the length of the rarest
+ * posting.  Only the positions of documents in all the postings are read,
+ * and lazily: the positions of the words of a phrase, less the word's
+ * offset in the phrase, are merged until they agree on a start or one of
+ * them runs out, so the positions after a match are never decoded.  What a
+ * phrase query costs over the AND query of its words therefore depends on
+ * how often the words occur in the documents that have them all, not on
+ * the length of their postings.
+ */
+public class ConjunctionIterator {
+  final Segment segment;
+  final PostingsIterator[] its;  // by increasing document frequency
+  final PostingsIterator[][] phrases;  // per phrase, an iterator per word
+  int doc = -1;
+
+  // current position, less its offset, and positions left of each word of
+  // the phrase being checked
+  final int[] starts;
+  final int[] left;
+
+  public ConjunctionIterator(Segment s, int[] terms, int[][] phrases) {
+    this.segment = s;
+    List<PostingsIterator> all = new ArrayList<PostingsIterator>();
+    this.phrases = new PostingsIterator[phrases.length][];
+    int maxLength = 0;
+    for (int p = 0; p < phrases.length; p++) {
+      this.phrases[p] = new PostingsIterator[phrases[p].length];
+      for (int i = 0; i < phrases[p].length; i++) {
+        this.phrases[p][i] = s.postings.iterator(phrases[p][i]);
+        all.add(this.phrases[p][i]);
+      }
+      maxLength = Math.max(maxLength, phrases[p].length);
+    }
+    // the words of a phrase are matched already
+    int[] sorted = terms.clone();
+    Arrays.sort(sorted);
+    for (int i = 0; i < sorted.length; i++) {
+      if ((i == 0 || sorted[i] != sorted[i - 1]) && !inPhrase(phrases, sorted[i]))
+        all.add(s.postings.iterator(sorted[i]));
+    }
+    its = all.toArray(new PostingsIterator[all.size()]);
+    Arrays.sort(its, new Comparator<PostingsIterator>() {
+      public int compare(PostingsIterator a, PostingsIterator b) {
+        return a.docFreq() - b.docFreq();
+      }
+    });
+    starts = new int[maxLength];
+    left = new int[maxLength];
+  }
+
+  static boolean inPhrase(int[][] phrases, int term) {
+    for (int[] phrase : phrases) {
+      for (int word : phrase) {
+        if (word == term)
+          return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Moves to the next matching document and returns it, or NO_MORE_DOCS.
+   * There is none if no term or phrase was given.
+   */
+  public int next() {
+    if (its.length == 0 || doc == PostingsIterator.NO_MORE_DOCS) {
+      doc = PostingsIterator.NO_MORE_DOCS;
+      return doc;
+    }
+    int candidate = its[0].next();
+    while (candidate != PostingsIterator.NO_MORE_DOCS) {
+      int i = 1;
+      for (; i < its.length; i++) {
+        int d = its[i].advance(candidate);
+        if (d != candidate) {
+          candidate = its[0].advance(d);
+          break;
+        }
+      }
+      if (i < its.length)
+        continue;
+      if (segment.isLive(candidate) && matchPhrases()) {
+        doc = candidate;
+        return doc;
+      }
+      candidate = its[0].next();
+    }
+    doc = PostingsIterator.NO_MORE_DOCS;
+    return doc;
+  }
+
+  /**
+   * The current document, -1 before the first call to next().
+   */
+  public int doc() {
+    return doc;
+  }
+
+  /**
+   * Number of postings decoded so far.
+   */
+  public long decoded() {
+    long decoded = 0;
+    for (PostingsIterator it : its)
+      decoded += it.decoded();
+    return decoded;
+  }
+
+  boolean matchPhrases() {
+    for (PostingsIterator[] words : phrases) {
+      if (!matchPhrase(words))
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * True if the words, whose iterators are all on the current document,
+   * occur there in order at consecutive positions.
+   */
+  boolean matchPhrase(PostingsIterator[] words) {
+    int n = words.length;
+    if (n == 1)
+      return true;
+    int rarest = 0;
+    for (int i = 0; i < n; i++) {
+      starts[i] = words[i].nextPosition() - i;
+      left[i] = words[i].freq() - 1;
+      if (left[i] < left[rarest])
+        rarest = i;
+    }
+    // the words from i - matched + 1 up to i, cyclically, all start at
+    // start; the word with the fewest occurrences leads
+    int start = starts[rarest];
+    int matched = 1;
+    for (int i = (rarest + 1) % n; matched < n; i = (i + 1) % n) {
+      while (starts[i] < start) {
+        if (left[i] == 0)
+          return false;
+        starts[i] = words[i].nextPosition() - i;
+        left[i]--;
+      }
+      if (starts[i] == start) {
+        matched++;
+      } else {
+        start = starts[i];
+        matched = 1;
+      }
+    }
+    return true;
+  }
+}
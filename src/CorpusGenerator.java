@@ -0,0 +1,210 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Writes a synthetic corpus in the layout readRawData() expects, one file
+ * per document in data_dir/raw, named after its title and number with the
+ * title padded to ten digits ("Doc0000000042 42.txt"), and a log of
+ * queries over it, one per line, in data_dir/queries.txt.
+ *
+ * Words are made up from syllables, one for each rank of a vocabulary of
+ * corpus.vocab words, and drawn with a Zipfian distribution: the word of
+ * rank r has probability proportional to 1 / (r + 1)^corpus.zipf.  Document
+ * lengths follow corpus.lengths around a mean of corpus.docLength words:
+ * "lognormal" (the default, with a spread of corpus.lengthSigma), "uniform"
+ * between half and one and a half times the mean, or "fixed".
+ *
+ * The query log holds corpus.queries queries of 1 to corpus.queryTerms
+ * words.  They are drawn from a smaller set of distinct queries, again
+ * with a Zipfian distribution, so that some queries repeat often, as in
+ * real traffic.
+ *
+ * Everything only depends on corpus.seed.  Each document is generated from
+ * its own random seed, so the first thousand documents of a ten million
+ * document corpus, titles included, are the same as those of a thousand
+ * document one.
+ */
+public class CorpusGenerator {
+  static final int VOCAB_SIZE = Integer.getInteger("corpus.vocab", 100000);
+  static final double ZIPF_EXPONENT = Double.parseDouble(System.getProperty("corpus.zipf", "1.0"));
+  static final int DOC_LENGTH = Integer.getInteger("corpus.docLength", 300);
+  static final String LENGTHS = System.getProperty("corpus.lengths", "lognormal");
+  static final double LENGTH_SIGMA = Double.parseDouble(System.getProperty("corpus.lengthSigma", "0.6"));
+  static final int NUM_QUERIES = Integer.getInteger("corpus.queries", 10000);
+  static final int QUERY_TERMS = Integer.getInteger("corpus.queryTerms", 4);
+  static final long SEED = Long.getLong("corpus.seed", 42);
+
+  static final int WORDS_PER_LINE = 12;
+  static final int TITLE_WIDTH = String.valueOf(Integer.MAX_VALUE).length();
+
+  final int numDocs;
+  final String[] vocab;
+  final Zipf zipf;
+
+  public CorpusGenerator(int numDocs) {
+    this.numDocs = numDocs;
+    vocab = new String[VOCAB_SIZE];
+    for (int rank = 0; rank < VOCAB_SIZE; rank++)
+      vocab[rank] = word(rank);
+    zipf = new Zipf(VOCAB_SIZE, ZIPF_EXPONENT);
+  }
+
+  /**
+   * A made-up word for each rank of the vocabulary, built of consonant-vowel
+   * syllables so that it looks like a word to the stemmer.  Different ranks
+   * give different words.
+   */
+  static String word(int rank) {
+    final String consonants = "bcdfghjklmnprstvz";
+    final String vowels = "aeiou";
+    StringBuilder word = new StringBuilder();
+    int n = rank;
+    do {
+      word.append(consonants.charAt(n % consonants.length()));
+      n /= consonants.length();
+      word.append(vowels.charAt(n % vowels.length()));
+      n /= vowels.length();
+    } while (n > 0);
+    return word.toString();
+  }
+
+  /**
+   * Draws ranks 0 to size - 1 with probability proportional to
+   * 1 / (rank + 1)^exponent, by binary search in the cumulative
+   * distribution.
+   */
+  static class Zipf {
+    final double[] cumulative;
+
+    Zipf(int size, double exponent) {
+      cumulative = new double[size];
+      double sum = 0;
+      for (int rank = 0; rank < size; rank++) {
+        sum += 1.0 / Math.pow(rank + 1, exponent);
+        cumulative[rank] = sum;
+      }
+    }
+
+    int next(Random random) {
+      double u = random.nextDouble() * cumulative[cumulative.length - 1];
+      int rank = Arrays.binarySearch(cumulative, u);
+      return rank >= 0 ? rank : Math.min(-rank - 1, cumulative.length - 1);
+    }
+  }
+
+  Random random(long stream, long n) {
+    // a distinct seed for every document and query, so that each one can
+    // be generated on its own
+    return new Random(SEED * 0x9E3779B97F4A7C15L + stream * 0xBF58476D1CE4E5B9L + n);
+  }
+
+  int length(Random random) {
+    if (LENGTHS.equals("fixed"))
+      return DOC_LENGTH;
+    if (LENGTHS.equals("uniform"))
+      return Math.max(1, DOC_LENGTH / 2 + random.nextInt(DOC_LENGTH + 1));
+    if (LENGTHS.equals("lognormal")) {
+      // mean of exp(mu + sigma * z) is exp(mu + sigma^2 / 2)
+      double mu = Math.log(DOC_LENGTH) - LENGTH_SIGMA * LENGTH_SIGMA / 2;
+      return Math.max(1, (int) Math.round(Math.exp(mu + LENGTH_SIGMA * random.nextGaussian())));
+    }
+    throw new IllegalArgumentException("Unknown document length distribution: " + LENGTHS);
+  }
+
+  /**
+   * The text of one document.
+   */
+  public String document(int doc) {
+    Random random = random(1, doc);
+    int length = length(random);
+    StringBuilder text = new StringBuilder(8 * length);
+    for (int i = 0; i < length; i++) {
+      text.append(vocab[zipf.next(random)]);
+      text.append(i % WORDS_PER_LINE == WORDS_PER_LINE - 1 || i == length - 1 ? '\n' : ' ');
+    }
+    return text.toString();
+  }
+
+  /**
+   * The distinct query of the given rank in the query log.
+   */
+  public String query(int rank) {
+    Random random = random(2, rank);
+    int terms = 1 + random.nextInt(QUERY_TERMS);
+    StringBuilder query = new StringBuilder();
+    for (int i = 0; i < terms; i++) {
+      if (i > 0)
+        query.append(' ');
+      query.append(vocab[zipf.next(random)]);
+    }
+    return query.toString();
+  }
+
+  /**
+   * The queries of the log, in order.  Half as many distinct queries as the
+   * log is long are drawn from.
+   */
+  public String[] queries() {
+    Zipf popularity = new Zipf(Math.max(1, NUM_QUERIES / 2), ZIPF_EXPONENT);
+    Random random = random(3, 0);
+    String[] queries = new String[NUM_QUERIES];
+    for (int i = 0; i < NUM_QUERIES; i++)
+      queries[i] = query(popularity.next(random));
+    return queries;
+  }
+
+  static String title(int doc) {
+    // padded to a width that does not depend on the corpus size, so that
+    // titles sort in document order and a document has the same title in
+    // every corpus
+    StringBuilder title = new StringBuilder("Doc");
+    String n = String.valueOf(doc);
+    for (int i = n.length(); i < TITLE_WIDTH; i++)
+      title.append('0');
+    return title.append(n).toString();
+  }
+
+  static void write(File file, String text) throws IOException {
+    BufferedWriter output = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+    try {
+      output.write(text);
+    } finally {
+      output.close();
+    }
+  }
+
+  /**
+   * Writes the corpus and the query log under a data directory.
+   */
+  public void generate(File dataDir) throws IOException {
+    File rawDir = new File(dataDir, "raw");
+    if (!rawDir.isDirectory() && !rawDir.mkdirs())
+      throw new IOException("Cannot create " + rawDir);
+    for (int doc = 0; doc < numDocs; doc++) {
+      write(new File(rawDir, title(doc) + " " + doc + ".txt"), document(doc));
+      if ((doc + 1) % 100000 == 0)
+        System.out.println("Wrote " + (doc + 1) + " documents");
+    }
+
+    StringBuilder log = new StringBuilder();
+    for (String query : queries())
+      log.append(query).append('\n');
+    write(new File(dataDir, "queries.txt"), log.toString());
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.out.println("java -cp SearchEngine.jar [-Dcorpus.<setting>=<value>...] CorpusGenerator <data dir> <num docs>");
+      return;
+    }
+    CorpusGenerator generator = new CorpusGenerator(Integer.parseInt(args[1]));
+    generator.generate(new File(args[0]));
+    System.out.println("Wrote " + generator.numDocs + " documents and " + NUM_QUERIES
+                       + " queries to " + args[0]);
+  }
+}
@@ -0,0 +1,119 @@
+import java.util.BitSet;
+
+/**
+ * The deleted documents of a segment and, per term id, the number of
+ * deleted documents containing it.  Deletions never change: delete() returns
+ * a copy.  The bits and the counts are kept in fixed-size pages that the
+ * copies share, so a copy only allocates the table of page references and
+ * the pages the deletion changes, one page of bits and at most one page of
+ * counts per term of the document.  A page with nothing deleted is null.
+ */
+public class Deletions {
+  static final int BITS_SHIFT = 12;  // 4096 documents, 64 longs, per page of bits
+  static final int COUNTS_SHIFT = 5;  // 32 terms per page of counts
+
+  final long[][] bits;
+  final int[][] counts;
+  final int numDeleted;
+
+  Deletions(long[][] bits, int[][] counts, int numDeleted) {
+    this.bits = bits;
+    this.counts = counts;
+    this.numDeleted = numDeleted;
+  }
+
+  /**
+   * No deletions among numDocs documents with numTerms terms.
+   */
+  public Deletions(int numDocs, int numTerms) {
+    this(new long[pages(numDocs, BITS_SHIFT)][], new int[pages(numTerms, COUNTS_SHIFT)][], 0);
+  }
+
+  static int pages(int size, int shift) {
+    return (size + (1 << shift) - 1) >>> shift;
+  }
+
+  /**
+   * The deletions of the documents not set in live, with the terms of each
+   * document read from the postings.
+   */
+  public static Deletions of(BitSet live, int numDocs, Postings postings) {
+    Deletions deletions = new Deletions(numDocs, postings.size());
+    int numDeleted = 0;
+    for (int doc = live.nextClearBit(0); doc < numDocs; doc = live.nextClearBit(doc + 1)) {
+      deletions.mark(doc, postings.terms(doc), false);
+      numDeleted++;
+    }
+    return new Deletions(deletions.bits, deletions.counts, numDeleted);
+  }
+
+  /**
+   * Number of deleted documents.
+   */
+  public int numDeleted() {
+    return numDeleted;
+  }
+
+  public boolean isDeleted(int doc) {
+    long[] page = bits[doc >>> BITS_SHIFT];
+    return page != null && (page[(doc >>> 6) & 63] & (1L << doc)) != 0;
+  }
+
+  /**
+   * Number of deleted documents the term with the given id occurs in.
+   */
+  public int docFreq(int term) {
+    int[] page = counts[term >>> COUNTS_SHIFT];
+    return page == null ? 0 : page[term & ((1 << COUNTS_SHIFT) - 1)];
+  }
+
+  /**
+   * Returns a copy with the document, whose terms are given, deleted too,
+   * or this if it already is.
+   */
+  public Deletions delete(int doc, int[] terms) {
+    if (isDeleted(doc))
+      return this;
+    Deletions copy = new Deletions(bits.clone(), counts.clone(), numDeleted + 1);
+    copy.mark(doc, terms, true);
+    return copy;
+  }
+
+  /**
+   * Sets the bit of the document and counts its terms, given in increasing
+   * order, in the page tables.  Pages that may be shared are copied before
+   * they are changed if copyPages is set.
+   */
+  void mark(int doc, int[] terms, boolean copyPages) {
+    int p = doc >>> BITS_SHIFT;
+    if (bits[p] == null)
+      bits[p] = new long[64];
+    else if (copyPages)
+      bits[p] = bits[p].clone();
+    bits[p][(doc >>> 6) & 63] |= 1L << doc;
+    int lastPage = -1;
+    for (int term : terms) {
+      int q = term >>> COUNTS_SHIFT;
+      if (q != lastPage) {
+        if (counts[q] == null)
+          counts[q] = new int[1 << COUNTS_SHIFT];
+        else if (copyPages)
+          counts[q] = counts[q].clone();
+        lastPage = q;
+      }
+      counts[q][term & ((1 << COUNTS_SHIFT) - 1)]++;
+    }
+  }
+
+  public static void main(String[] args) {
+    Deletions none = new Deletions(10000, 100);
+    Deletions one = none.delete(5000, new int[] { 3, 40, 41 });
+    Deletions two = one.delete(7, new int[] { 40, 99 });
+    System.out.println("Deleted: " + two.numDeleted() + ", 7 " + two.isDeleted(7)
+                       + ", 5000 " + two.isDeleted(5000) + ", 8 " + two.isDeleted(8));
+    System.out.println("Deleted docs with term 40: " + two.docFreq(40)
+                       + ", before the second delete " + one.docFreq(40)
+                       + ", before any " + none.docFreq(40));
+    System.out.println("Page of terms 0 to 31 shared by the copies: " + (two.counts[0] == one.counts[0]));
+  }
+}
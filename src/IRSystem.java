@@ -1,31 +1,172 @@
 import java.io.*;
+import java.nio.DoubleBuffer;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadFactory;
 
 
 public class IRSystem 
 {
+      // Number of results runEngine() prints for each query.
+      static final int NUM_RESULTS = 10;
+
+      // Port of the HTTP server started by "serve" when none is given.
+      static final int SERVER_PORT = 8080;
+
       List<String> titles;
       ArrayList<ArrayList<String>> documents;
-      ArrayList<String> vocab;
-      HashMap<String, ArrayList<Integer>> invertedIndex;
+
+      // Every stemmed term has a dense id; the structures below are indexed by it.
+      TermDictionary dictionary;
+      Postings invertedIndex;
 
       // For the text pre-processing.
       PorterStemmer stemmer;
 
-      CounterMap<String, Integer> tfidf;  // word and document index
-      Counter<String> docFreq = new Counter<String>();
+      // Maximum number of words kept by the stem cache, set with
+      // -Dirsystem.stemCacheSize; 0 turns the cache off.
+      static final int STEM_CACHE_SIZE = Integer.getInteger("irsystem.stemCacheSize", 65536);
 
-      public IRSystem(String dataDir) 
+      // Shared by the stemming threads and the queries; null if turned off.
+      StemCache stemCache;
+
+      // Maximum number of query results kept by the result cache, set with
+      // -Dirsystem.resultCacheSize; 0 turns the cache off.  Results are
+      // dropped when the index changes, and after -Dirsystem.resultCacheTTL
+      // milliseconds if that is set.
+      static final int RESULT_CACHE_SIZE = Integer.getInteger("irsystem.resultCacheSize", 10000);
+      static final long RESULT_CACHE_TTL = Long.getLong("irsystem.resultCacheTTL", 0);
+
+      // Shared by the searchers; null if turned off.
+      ResultCache resultCache;
+
+      ImpactStore tfidf;  // term id and document index, non-zero entries only
+      volatile int numDocs;  // documents indexed so far, deleted ones included
+      DoubleBuffer norms;  // Euclidean length of each document's tf-idf vector
+
+      // What queries search.  Writers replace it as a whole, holding
+      // writeLock, and queries read it once, so they never wait for a write.
+      volatile IndexState state = new IndexState(new ArrayList<Segment>(), null);
+      final Object writeLock = new Object();
+      int nextSegment;
+
+      // Documents buffered in memory before they are flushed as a segment,
+      // set with -Dirsystem.flushDocs.
+      static final int FLUSH_DOCS = Integer.getInteger("irsystem.flushDocs", 1000);
+
+      // Where flushed and merged segments are written; null keeps them in
+      // memory.  Guarded by writeLock.
+      File indexDir;
+
+      // Files a merge is writing to indexDir outside writeLock, which
+      // saveIndex() must not delete as unreferenced.  Guarded by writeLock.
+      final Set<String> pendingFiles = new HashSet<String>();
+
+      // Merges run one at a time on a background thread.
+      static final int MERGE_FACTOR = Integer.getInteger("irsystem.mergeFactor", 10);
+      TieredMergePolicy mergePolicy = new TieredMergePolicy(MERGE_FACTOR, FLUSH_DOCS, 0.3);
+      ExecutorService mergeExecutor;
+      boolean merging;
+
+      // Scratch state of the queries running on any searcher of this index.
+      final ConcurrentLinkedQueue<Searcher.Scratch> scratchPool =
+          new ConcurrentLinkedQueue<Searcher.Scratch>();
+
+      // Name of the index directory main() keeps in the data directory.
+      static final String INDEX_DIR = "index";
+
+      IRSystem()
       {
         stemmer = new PorterStemmer();
+        titles = new ArrayList<String>();
+        if (STEM_CACHE_SIZE > 0)
+          stemCache = new StemCache(STEM_CACHE_SIZE);
+        if (RESULT_CACHE_SIZE > 0)
+          resultCache = new ResultCache(RESULT_CACHE_SIZE, RESULT_CACHE_TTL);
+      }
+
+      /** Stems w[0] up to w[len-1] with the given stemmer, going through the
+       *  stem cache if there is one.
+       */
+      String stem(char[] w, int len, PorterStemmer stemmer)
+      {
+        if (stemCache != null)
+          return stemCache.stem(w, 0, len, stemmer);
+        stemmer.stem(w, 0, len);
+        return stemmer.toString();
+      }
+
+      public IRSystem(String dataDir) 
+      {
+        this();
         readData(dataDir);
       }
 
+      /** Opens an index directory written by saveIndex().  The documents
+       *  themselves are not read, so only the query methods and addDocument()
+       *  and friends can be used.  Segments flushed or merged from now on are
+       *  written to the same directory.
+       */
+      static IRSystem openIndex(File indexDir) throws IOException
+      {
+        System.out.println("Opening index...");
+        IndexDirectory dir = IndexDirectory.open(indexDir);
+        IRSystem irSys = new IRSystem();
+        irSys.numDocs = dir.numDocs;
+        irSys.nextSegment = dir.nextSegment;
+        irSys.state = new IndexState(dir.segments, null);
+        irSys.indexDir = indexDir;
+        return irSys;
+      }
+
+      /** Flushes the added documents and commits every segment, with its
+       *  deletions, to a directory that openIndex() can map.  Segments flushed
+       *  or merged from now on are written to the same directory.
+       */
+      void saveIndex(File indexDir) throws IOException
+      {
+        System.out.println("Saving index...");
+        synchronized (writeLock)
+        {
+              this.indexDir = indexDir;
+              flush();
+              IndexState current = state;
+              List<Segment> written = IndexDirectory.write(indexDir, numDocs, nextSegment,
+                                                           current.segments, pendingFiles);
+              state = new IndexState(written, current.buffer);
+        }
+      }
+
+
+      /** The segments queries search, in document order, and the buffer of
+       *  documents added since the last flush.  Never modified once
+       *  published; a new one replaces it.
+       */
+      static class IndexState
+      {
+            final List<Segment> segments;
+            final MemorySegment buffer;
+
+            IndexState(List<Segment> segments, MemorySegment buffer)
+            {
+                  this.segments = Collections.unmodifiableList(segments);
+                  this.buffer = buffer;
+            }
+      }
+
       void index() 
       {
         System.out.println("Indexing...");
@@ -36,120 +177,473 @@ public class IRSystem
          *    * documents
          */
 
-            ArrayList<HashSet<String>> docW = new ArrayList<HashSet<String>>();
-            for (ArrayList<String> doc:documents)
+            /* Single pass over the corpus: documents are visited in doc id
+             * order, so each posting is only ever appended to and stays
+             * sorted without a separate sort step.  Terms get a temporary id
+             * in order of first appearance, which is remapped to the
+             * dictionary id once all terms are known.  The position of
+             * every occurrence, its index among the words of the document,
+             * is appended to its term's positions, which line up with the
+             * postings as freq positions per posting. */
+            numDocs = documents.size();
+            HashMap<String, Integer> firstSeen = new HashMap<String, Integer>();
+            ArrayList<String> terms = new ArrayList<String>();
+            int[][] docs = new int[1024][];
+            int[][] freqs = new int[1024][];
+            int[] sizes = new int[1024];
+            int[][] positions = new int[1024][];
+            int[] numPositions = new int[1024];
+            for (int d = 0; d < documents.size(); d++)
             {
-                    HashSet<String> set = new HashSet<String>(doc);
-                    docW.add(set);
+                  ArrayList<String> document = documents.get(d);
+                  for (int p = 0; p < document.size(); p++)
+                  {
+                        String word = document.get(p);
+                        Integer id = firstSeen.get(word);
+                        if (id == null)
+                        {
+                              id = terms.size();
+                              firstSeen.put(word, id);
+                              terms.add(word);
+                              if (id == docs.length)
+                              {
+                                    docs = Arrays.copyOf(docs, 2 * id);
+                                    freqs = Arrays.copyOf(freqs, 2 * id);
+                                    sizes = Arrays.copyOf(sizes, 2 * id);
+                                    positions = Arrays.copyOf(positions, 2 * id);
+                                    numPositions = Arrays.copyOf(numPositions, 2 * id);
+                              }
+                              docs[id] = new int[4];
+                              freqs[id] = new int[4];
+                              positions[id] = new int[4];
+                        }
+                        int t = id;
+                        if (numPositions[t] == positions[t].length)
+                              positions[t] = Arrays.copyOf(positions[t], 2 * numPositions[t]);
+                        positions[t][numPositions[t]++] = p;
+                        int n = sizes[t];
+                        // repeated occurrences within the same document only
+                        // bump the term frequency
+                        if (n > 0 && docs[t][n - 1] == d)
+                        {
+                              freqs[t][n - 1]++;
+                              continue;
+                        }
+                        if (n == docs[t].length)
+                        {
+                              docs[t] = Arrays.copyOf(docs[t], 2 * n);
+                              freqs[t] = Arrays.copyOf(freqs[t], 2 * n);
+                        }
+                        docs[t][n] = d;
+                        freqs[t][n] = 1;
+                        sizes[t]++;
+                  }
             }
 
-            invertedIndex = new HashMap<String, ArrayList<Integer>>();
-            for (String word : vocab) 
+            dictionary = new TermDictionary(terms);
+            int[] byId = new int[dictionary.size()];
+            for (int t = 0; t < terms.size(); t++)
+                  byId[dictionary.lookup(terms.get(t))] = t;
+
+            Postings.Writer writer = new Postings.Writer();
+            for (int id = 0; id < byId.length; id++)
             {
-                  ArrayList<Integer> mapping = new ArrayList<Integer>();
-                  for (int i = 0;i<docW.size();i++)
+                  int t = byId[id];
+                  writer.startTerm();
+                  int from = 0;
+                  for (int i = 0; i < sizes[t]; i++)
                   {
-                        HashSet<String> doc = docW.get(i);
-                            if (doc.contains((String)word))
-                                    mapping.add(i);
+                        writer.add(docs[t][i], freqs[t][i], positions[t], from);
+                        from += freqs[t][i];
                   }
-                  invertedIndex.put(word, mapping);
+                  docs[t] = null;
+                  freqs[t] = null;
+                  positions[t] = null;
             }
+            invertedIndex = writer.finish();
       }
 
 
   void computeTFIDF()
   {
         /** Compute and store TF-IDF values for words and documents.
-         *  Recall that you can make use of the instance variables:
-         *   * vocab
-         *   * documents
-         * NOTE that you probably do *not* want to store a value for every
-         * word-document pair, but rather just for those pairs where a
-         * word actually occurs in the document.
+         *  Only the (term, document) pairs in the postings built by index()
+         *  are stored, using the term frequencies counted there.
          */
         System.out.println("Computing TF-IDF...");
 
+	//CALCULATING TF WEIGHT, ONLY FOR THE DOCUMENTS IN EACH TERM'S POSTING
+	//AND ACCUMULATING THE SQUARED TF-IDF WEIGHTS OF EVERY DOCUMENT
+        tfidf = new ImpactStore(invertedIndex);
+        double[] lengths = new double[numDocs];
+        for (int term = 0; term < dictionary.size(); term++) 
+        {
+              double idf = getIDF(term);
+              PostingsIterator it = invertedIndex.iterator(term);
+              while (it.next() != PostingsIterator.NO_MORE_DOCS) 
+              {
+                    double weight = Math.log10(it.freq()) + 1.0;
+                    tfidf.setWeight(term, it.ordinal(), weight);
 
-	//PRIOR CALCULATION OF THE NUMBER OF TIMES A PARTICULAR TERM OCCURS IN A DOCUMENT
-	ArrayList<HashMap<String,Integer>> termFreq = new ArrayList<HashMap<String,Integer>>();
-	
-	for (int d = 0; d < documents.size(); d++)
-	{
-		ArrayList<String> doc = documents.get(d);
-		HashMap<String,Integer> freq = new HashMap<String,Integer>();
-		
-		for (String word:doc)
-		{
-			if(freq.containsKey(word))
-			{
-				int f = freq.get(word);
-				f++;
-				freq.put(word,f);
-			}
-			else
-			{
-				freq.put(word,1);
-			}
-		}
-		termFreq.add(d,freq);
-	}
-	
-	//PRIOR CALCULATION OF DOCUMENT FREQUENCY FOR A PARTICULAR TERM
-	for (ArrayList<String> doc:documents)
-	{
-		HashSet<String> set = new HashSet<String>(doc);
-		
-		Iterator i = set.iterator();	
-		
-		while (i.hasNext())
-		{
-			String term = (String)i.next();
-			if (docFreq.containsKey(term))
-			{
-				double df = docFreq.getCount(term) + 1.0;
-				docFreq.setCount(term,df);
-			}
-			else
-				docFreq.setCount(term,1.0);
-		}
-		//docW.add(set);
-	}
-	
-	//CALCULATING TF WEIGHT
-        tfidf = new CounterMap<String, Integer>();
-        for (String word : vocab) 
+                    double t = weight * idf;
+                    lengths[it.doc()] += t*t;
+              }
+        }
+        for (int d = 0; d < lengths.length; d++)
+              lengths[d] = Math.sqrt(lengths[d]);
+        norms = DoubleBuffer.wrap(lengths);
+        tfidf.computeMaxImpacts(invertedIndex, norms);
+
+        synchronized (writeLock)
+        {
+              List<Segment> segments = new ArrayList<Segment>();
+              segments.add(new Segment("seg0", dictionary, invertedIndex, tfidf, norms,
+                                       new ArrayList<String>(titles), 0, numDocs, null, null));
+              nextSegment = 1;
+              state = new IndexState(segments, null);
+        }
+  }
+
+
+  /** Adds a document to the index without rebuilding it and returns its
+   *  index.  The text is tokenized and stemmed like a raw document and its
+   *  postings are appended to the buffer of added documents, which is
+   *  flushed as a new segment once it holds FLUSH_DOCS documents.  The norm
+   *  of the new document uses the document frequencies as they are after
+   *  adding it; the norms of the other documents are not recomputed, so
+   *  they keep the statistics of the time they were indexed until the next
+   *  full index() and computeTFIDF().
+   */
+  int addDocument(String title, String text) throws IOException
+  {
+        ArrayList<String> words = stemText(text);
+        synchronized (writeLock)
+        {
+              return addStemmed(title, words);
+        }
+  }
+
+
+  /** Stems a document's text outside any lock.  Documents are tokenized
+   *  and stemmed the same way as queries, but without a searcher: taking
+   *  one would encode the whole buffer into a segment for every added
+   *  document.
+   */
+  ArrayList<String> stemText(String text)
+  {
+        Searcher.Scratch scratch = scratchPool.poll();
+        if (scratch == null)
+              scratch = new Searcher.Scratch();
+        try
+        {
+              return Searcher.processText(text, scratch, stemCache);
+        }
+        finally
+        {
+              scratchPool.offer(scratch);
+        }
+  }
+
+
+  /** Adds a stemmed document to the buffer.  Must be called holding
+   *  writeLock.
+   */
+  int addStemmed(String title, ArrayList<String> words) throws IOException
+  {
+        IndexState current = state;
+        MemorySegment buffer = current.buffer;
+        if (buffer == null)
+        {
+              buffer = new MemorySegment("seg" + nextSegment++, numDocs);
+              state = new IndexState(current.segments, buffer);
+        }
+        // statistics are taken from the buffer directly, as encoding it
+        // into a segment for every document would cost more than the
+        // add; they count the new document, which is only added to the
+        // buffer with its norm, so that no searcher sees it without one
+        String[] terms = words.toArray(new String[words.size()]);
+        Arrays.sort(terms);
+        int numLive = Searcher.numLiveDocs(current.segments) + buffer.numLiveDocs() + 1;
+        double length = 0.0;
+        for (int i = 0; i < terms.length; )
+        {
+              int j = i + 1;
+              while (j < terms.length && terms[j].equals(terms[i]))
+                    j++;
+              int df = Searcher.docFreq(current.segments, terms[i]) + buffer.docFreq(terms[i]) + 1;
+              double t = (Math.log10(j - i) + 1.0) * Math.log10((double)numLive/(double)df);
+              length += t*t;
+              i = j;
+        }
+        int doc = buffer.docBase + buffer.addDocument(title, words, Math.sqrt(length));
+        numDocs++;
+
+        if (buffer.numDocs() >= FLUSH_DOCS)
+              flush();
+        return doc;
+  }
+
+
+  /** Deletes a document by clearing its bit in the live docs of its segment.
+   *  Its index is not reused.  Returns false if it was already deleted.
+   */
+  boolean deleteDocument(int doc)
+  {
+        if (doc < 0 || doc >= numDocs)
+              throw new IndexOutOfBoundsException("No document " + doc);
+        synchronized (writeLock)
+        {
+              return delete(doc);
+        }
+  }
+
+
+  /** Deletes a document, returning false if it was already deleted.  Must
+   *  be called holding writeLock.
+   */
+  boolean delete(int doc)
+  {
+        IndexState current = state;
+        if (current.buffer != null && doc >= current.buffer.docBase)
+              return current.buffer.delete(doc - current.buffer.docBase);
+        List<Segment> segments = new ArrayList<Segment>(current.segments);
+        for (int i = 0; i < segments.size(); i++)
+        {
+              Segment s = segments.get(i);
+              int local = s.localDoc(doc);
+              if (local < 0)
+                    continue;
+              Segment deleted = s.withDeletion(local);
+              if (deleted == s)
+                    return false;
+              segments.set(i, deleted);
+              state = new IndexState(segments, current.buffer);
+              maybeMerge();
+              return true;
+        }
+        // dropped by a merge
+        return false;
+  }
+
+
+  /** Replaces the text of a document: the old document is deleted and the
+   *  new text added under the same title, in one step, so queries see
+   *  either the old document or the new one.  Returns the new document
+   *  index, or -1 if the document was already deleted.
+   */
+  int updateDocument(int doc, String text) throws IOException
+  {
+        if (doc < 0 || doc >= numDocs)
+              throw new IndexOutOfBoundsException("No document " + doc);
+        ArrayList<String> words = stemText(text);
+        synchronized (writeLock)
+        {
+              // looked up without a searcher, like addDocument() stems without one
+              IndexState current = state;
+              String title;
+              if (current.buffer != null && doc >= current.buffer.docBase)
+              {
+                    int local = doc - current.buffer.docBase;
+                    if (!current.buffer.isLive(local))
+                          return -1;
+                    title = current.buffer.title(local);
+              }
+              else
+              {
+                    Segment s = Searcher.segmentOf(current.segments, doc);
+                    int local = s == null ? -1 : s.localDoc(doc);
+                    if (local < 0 || !s.isLive(local))
+                          return -1;
+                    title = s.titles.get(local);
+              }
+              delete(doc);
+              return addStemmed(title, words);
+        }
+  }
+
+
+  /** Turns the buffered documents into a segment, written to indexDir if
+   *  there is one.  Must be called holding writeLock.
+   */
+  void flush() throws IOException
+  {
+        IndexState current = state;
+        if (current.buffer == null)
+              return;
+        List<Segment> segments = new ArrayList<Segment>(current.segments);
+        if (current.buffer.numDocs() > 0)
         {
-              for (int d = 0; d < documents.size(); d++) 
+              Segment flushed = current.buffer.segment();
+              if (indexDir != null)
               {
-                    Integer temp = termFreq.get(d).get(word);
-                    double freq = 0.0;
-                    if (temp != null)
-                          freq = temp.doubleValue();
+                    indexDir.mkdirs();
+                    flushed = IndexDirectory.writeSegment(indexDir, flushed);
+              }
+              segments.add(flushed);
+        }
+        state = new IndexState(segments, null);
+        maybeMerge();
+  }
+
 
-                    double weight = 0.0;
-                    if (freq != 0.0)
+  /** Starts a background merge if the merge policy asks for one and none
+   *  is running.  Must be called holding writeLock.
+   */
+  void maybeMerge()
+  {
+        if (merging)
+              return;
+        List<Segment> segments = state.segments;
+        int[] range = mergePolicy.findMerge(segments);
+        if (range == null)
+              return;
+        if (mergeExecutor == null)
+        {
+              mergeExecutor = Executors.newSingleThreadExecutor(new ThreadFactory()
+              {
+                    public Thread newThread(Runnable r)
                     {
-                            weight = Math.log10(freq) +  1.0;
+                          Thread t = new Thread(r, "merge");
+                          t.setDaemon(true);
+                          return t;
                     }
-                    tfidf.setCount(word, new Integer(d), weight);
+              });
+        }
+        merging = true;
+        mergeExecutor.execute(new MergeTask(new ArrayList<Segment>(segments.subList(range[0], range[1])),
+                                            "seg" + nextSegment++));
+  }
+
+
+  /** Merges segments in the background, then swaps the result in.
+   *  Documents deleted from the sources while the merge ran are deleted
+   *  from the merged segment before it is published.
+   */
+  class MergeTask implements Runnable
+  {
+    final List<Segment> sources;
+    final String name;
+
+    MergeTask(List<Segment> sources, String name)
+    {
+      this.sources = sources;
+      this.name = name;
+    }
+
+    public void run()
+    {
+      String file = name + IndexDirectory.SEGMENT_SUFFIX;
+      try {
+        Segment merged = SegmentMerger.merge(name, sources);
+        File dir;
+        synchronized (writeLock) {
+          dir = indexDir;
+          if (merged != null && dir != null)
+            pendingFiles.add(file);
+        }
+        if (merged != null && dir != null)
+          merged = IndexDirectory.writeSegment(dir, merged);
+        synchronized (writeLock) {
+          pendingFiles.remove(file);
+          List<Segment> segments = new ArrayList<Segment>(state.segments);
+          int from = -1;
+          for (int i = 0; i < segments.size(); i++) {
+            if (segments.get(i).name.equals(sources.get(0).name)) {
+              from = i;
+              break;
+            }
+          }
+          List<Segment> current = segments.subList(from, from + sources.size());
+          if (merged != null) {
+            BitSet live = new BitSet(merged.numDocs());
+            for (int doc = 0; doc < merged.numDocs(); doc++) {
+              Segment s = Searcher.segmentOf(current, merged.docId(doc));
+              if (s.isLive(s.localDoc(merged.docId(doc))))
+                live.set(doc);
             }
+            if (live.cardinality() < merged.numDocs())
+              merged = merged.withLiveDocs(live);
+          }
+          current.clear();
+          if (merged != null)
+            current.add(merged);
+          state = new IndexState(segments, state.buffer);
+          merging = false;
+          writeLock.notifyAll();
+          maybeMerge();
+        }
+      } catch(Throwable e) {
+        e.printStackTrace();
+        synchronized (writeLock) {
+          pendingFiles.remove(file);
+          merging = false;
+          writeLock.notifyAll();
         }
+      }
+    }
+  }
+
+
+  /** Waits until no merge is running or needed. */
+  void waitForMerges() throws InterruptedException
+  {
+        synchronized (writeLock)
+        {
+              while (merging)
+                    writeLock.wait();
+        }
+  }
+
+
+  /** The segments a query searches: a snapshot of the current state, with
+   *  the added documents last.
+   */
+  List<Segment> searchSegments()
+  {
+        IndexState current = state;
+        if (current.buffer == null)
+              return current.segments;
+        Segment added = current.buffer.segment();
+        if (added.numDocs() == 0)
+              return current.segments;
+        List<Segment> all = new ArrayList<Segment>(current.segments);
+        all.add(added);
+        return all;
+  }
+
+
+  /** A searcher over the index as it is now.  It can be shared between
+   *  threads, and its results are not affected by later writes.
+   */
+  Searcher searcher()
+  {
+        return new Searcher(searchSegments(), stemCache, resultCache, scratchPool);
+  }
+
+
+  /** Number of live documents a stemmed term occurs in, over all segments. */
+  int docFreq(String term)
+  {
+        return searcher().docFreq(term);
+  }
+
+
+  /** Returns the inverse document frequency weight of a term id, as of
+   *  index().
+   */
+  double getIDF(int term)
+  {
+        return Math.log10((double)numDocs/(double)invertedIndex.docFreq(term));
   }
 
 
   double getTFIDF(String word, int doc) 
   {
-        double tfidf_score = 0.0;
         /** 
          * Return the tf-idf weigthing for the given word (string) and
          * document index.
          */
-	double temp = (double)documents.size()/(double)docFreq.getCount(word);
-	double docFreqWeight = Math.log10(temp);
-	
-	tfidf_score = tfidf.getCount(word,doc) * docFreqWeight;
-        return tfidf_score;
+        return searcher().getTFIDF(word, doc);
   }
 
 
@@ -160,56 +654,53 @@ public class IRSystem
          * Stems the word and then calls get_tfidf. You should *not* need to
          * change this interface, but it is necessary for submission.
          */
-        word = stemmer.stem(word);
-        return getTFIDF(word, doc);
+        Searcher searcher = searcher();
+        return searcher.getTFIDF(searcher.stem(word), doc);
   }
 
 
-  ArrayList<Integer> getPosting(String word) 
+  List<Integer> getPosting(String word) 
   {
-        ArrayList<Integer> posting = new ArrayList<Integer>();
-        
-        /** Return the list of postings for a word. */
-	ArrayList<HashSet<String>> docW = new ArrayList<HashSet<String>>();
-	for (ArrayList<String> doc:documents)
-	{
-		HashSet<String> set = new HashSet<String>(doc);
-		docW.add(set);
-	}
-	
-	for (int i = 0;i<docW.size();i++)
-	{
-		HashSet<String> set = docW.get(i);
-		if (set.contains(word))
-			posting.add(i);
-	}
-        return posting;
+        /** Return the list of postings for a word, decoded from the
+         *  compressed postings of every segment, without deleted documents.
+         *  The list is read-only.
+         */
+        int[] docs = searcher().getPosting(word);
+        if (docs.length == 0)
+              return Collections.<Integer>emptyList();
+        return asList(docs);
+  }
+
+
+  /** Returns a read-only List view of an int array. */
+  static List<Integer> asList(final int[] array)
+  {
+        return new AbstractList<Integer>()
+        {
+              public Integer get(int i)
+              {
+                    return array[i];
+              }
+
+              public int size()
+              {
+                    return array.length;
+              }
+        };
   }
 
 
-  public ArrayList<Integer> getPostingUnstemmed(String word) 
+  public List<Integer> getPostingUnstemmed(String word) 
   {
         /**
          * Given a word, this *stems* the word and then calls get_posting on the
          * stemmed word to get its postings list. You should *not* need to change
          * this function. It is needed for submission.
          */
-        word = stemmer.stem(word);
-        return getPosting(word);
+        Searcher searcher = searcher();
+        return asList(searcher.getPosting(searcher.stem(word)));
   }
 
-    /** This method returns an intersection of two Collections **/
-  HashSet<Integer> intersectSets(HashSet<Integer> set1, ArrayList<Integer> set2)
-  {
-	HashSet<Integer> mergedSets = new HashSet<Integer>();
-	for (int docID:set2)
-	{
-        	if (set1.contains(docID))
-                	mergedSets.add(docID);
-	}
-	return mergedSets;
-  }
-		
   ArrayList<Integer> booleanRetrieve(ArrayList<String> query)
   {
     /**
@@ -224,129 +715,22 @@ public class IRSystem
      * Return an empty list if the query does not return any documents.
      */
 	
-	HashSet<Integer> results = new HashSet<Integer>(getPosting(query.get(0)));
-	for (int i = 1;i<query.size();i++)
-	{
-		ArrayList<Integer> temp = getPosting(query.get(i));
-		results = intersectSets(results,temp);
-	}
-
-	ArrayList<Integer> docs = new ArrayList<Integer>(results);
-        Collections.sort(docs);
-        return docs;
+	return searcher().booleanRetrieve(query);
   }
 
 
   PriorityQueue<Integer> rankRetrieve(ArrayList<String> query) 
   {
-      double scores[] = new double[documents.size()];
+        /** Returns all the documents with a positive score, best first.
+         *  rankRetrieve(query, k) is cheaper when only the top k are needed.
+         */
+        return rankRetrieve(query, Math.max(numDocs, 1)).asPriorityQueue();
+  }
 
-    /*************************************************************/
-    /** Implement cosine similarity. */
-        
-      double[] length = new double[documents.size()];
-    
-      for (int i = 0;i<documents.size();i++)
-      {
-            double normalScore = 0.0;
-            HashSet<String> words = new HashSet<String>(documents.get(i));
-    	
-            Iterator it = words.iterator();
-            while(it.hasNext())
-            {
-    		String w = (String)it.next();
-    		double t = getTFIDF(w,i);
-    		t = t*t;
-    		normalScore += t;
-            }
-            normalScore = Math.sqrt(normalScore);
-            length[i] = normalScore;
-      }      
-      
-      HashSet<String> wordsInQuery = new HashSet<String>();
-      wordsInQuery.addAll(query);
-    
-      //Calculating TF for the query...
-      HashMap<String, Integer> termFreq = new HashMap<String, Integer>();
-      double weight = 0.0;
-    
-      Iterator it = wordsInQuery.iterator();
-      while (it.hasNext())
-      {
-            String term = (String)it.next();
-            for (String t : query)
-            {
-    		if (t.equals(term))
-    		{
-    			if (termFreq.containsKey(t))
-    			{
-    				int temp = termFreq.get(t) + 1;
-    				termFreq.put(t,temp);
-    			}
-    			else
-    				termFreq.put(t,1);
-               	}
-            }
-       }
-       it = wordsInQuery.iterator();
-       while (it.hasNext())
-       {
-            String term = (String)it.next();
-            double idf = (double)documents.size()/(double)docFreq.getCount(term);
-            double ifW = 0.0;
-            if (termFreq.containsKey(term))
-            {
-    		ifW = Math.log10((double)termFreq.get(term)) + 1.0;
-            }
-    	
-            weight = ifW;
-    	
-            ArrayList<Integer> posting = getPosting(term);
-            for (int p : posting)
-            {
-    		double wtd = getTFIDF(term,p);
-    		scores[p] += weight * wtd; 
-            }
-        }
-    
-        for (int i = 0;i<scores.length;i++)
-        {
-            scores[i]=scores[i]/length[i];
-        }
-    
-    /*******************************************************/
-    /*       IMPLEMENTATION OF JACCARD SIMILARITY          */
-    /*******************************************************/
- //   HashSet<String> wordsInQuery = new HashSet<String>();
- //   wordsInQuery.addAll(query);
- //   HashSet<String> wordsInDoc;
- //   HashSet<String> setUnion;
- //   HashSet<String> setIntersection;
- //   for (int d = 0; d < documents.size(); d++) {
- //     wordsInDoc = new HashSet<String>();
- //     wordsInDoc.addAll(documents.get(d));
- //     setUnion = new HashSet<String>(wordsInDoc);
- //     setUnion.addAll(wordsInQuery);
- //     setIntersection = new HashSet<String>(wordsInQuery);
- //     setIntersection.retainAll(wordsInDoc);
- //     scores[d] = ((double) setIntersection.size()) / ((double) setUnion.size());
- //   }
-
-    /* End TODO */
-
-        PriorityQueue<Integer> pq = new PriorityQueue<Integer>();
-        for (int d = 0; d < scores.length; d++) 
-        {
-            pq.add(new Integer(d), scores[d]);
-        }
 
-//    PriorityQueue<Integer> topTen = new PriorityQueue<Integer>();
-//    for (int d = 0; d < 10; d++) {
-//      double priority = pq.getPriority();
-//      topTen.add(pq.next(), priority);
-//    }
-        
-        return pq;
+  TopDocs rankRetrieve(ArrayList<String> query, int k) 
+  {
+      return searcher().rankRetrieve(query, k);
   }
 
 
@@ -355,57 +739,54 @@ public class IRSystem
    */
   ArrayList<String> processQuery(String queryString)
   {
-    // lowercase
-    queryString = queryString.toLowerCase();
-    ArrayList<String> query = new ArrayList<String>();
-    for (String s : queryString.split("\\s+")) 
-    {
-          // remove non alphanumeric characters
-          s = s.replaceAll("[^a-zA-Z0-9]", "");
-          // stem s
-          s = stemmer.stem(s);
-          if (!s.equals(""))
-                query.add(s);
-    }
-    return query;
+    // lowercase alphanumeric tokens, split on whitespace, exactly as the
+    // documents were tokenized by readRawFile()
+    return searcher().processQuery(queryString);
   }
 
 
   /** Given a string, this will process and then return the list of matching
-   * documents found by booleanRetrieve()
+   * documents found by booleanRetrieve().  Words in double quotes must
+   * occur as a phrase.
    */
   ArrayList<Integer> queryRetrieve(String queryString)
   {
-        ArrayList<String> query = processQuery(queryString);
-        return booleanRetrieve(query);
+        return searcher().queryRetrieve(queryString);
   }
 
 
   /** Given a string, this will process and then return the list of the
-   * top matching documents found by rankRetrieve()
+   * top matching documents found by rankRetrieve().  Words in double
+   * quotes must occur as a phrase.
    */
   PriorityQueue<Integer> queryRank(String queryString)
   {
-        ArrayList<String> query = processQuery(queryString);
-        return rankRetrieve(query);
+        Searcher searcher = searcher();
+        Searcher.Query query = searcher.parseQuery(queryString);
+        return searcher.rankRetrieve(query.words, query.phrases,
+                                     Math.max(searcher.maxDoc(), 1)).asPriorityQueue();
   }
 
 
-  void getUniqWords() 
+  /** Given a string, this will process and then return at most k of the
+   * top matching documents found by rankRetrieve(), best first.
+   */
+  TopDocs queryRank(String queryString, int k)
   {
-        HashSet<String> uniqWords = new HashSet<String>();
-        for (ArrayList<String> document : documents) 
-        {
-            for (String word : document) 
-            {
-                uniqWords.add(word);
-            }
-        }
-        vocab = new ArrayList<String>(uniqWords);
+        return searcher().queryRank(queryString, k);
   }
 
 
   ArrayList<String> readRawFile(String title, BufferedReader input, String stemmedDirName)
+  {
+    return readRawFile(title, input, stemmedDirName, stemmer);
+  }
+
+  /** Stems one raw document with the given stemmer, which must not be in use
+   *  by another thread, and writes the stemmed cache file for it.
+   */
+  ArrayList<String> readRawFile(String title, BufferedReader input, String stemmedDirName,
+                                PorterStemmer stemmer)
   {
     ArrayList<String> document = new ArrayList<String>();
     /* Output buffer for stemmed document. */
@@ -420,37 +801,29 @@ public class IRSystem
     }
 
     try {
+      Tokenizer tokenizer = new Tokenizer();
       String line;
       while ((line = input.readLine()) != null) {
-        // make sure everything is lowercase
-        line = line.toLowerCase();
-        // split on whitespace
-        ArrayList<String> tmp = new ArrayList<String>();
+        // lowercase alphanumeric tokens, split on whitespace
+        tokenizer.reset(line);
         boolean emptyLine = true;
-        for (String s : line.split("\\s+")) {
-          // Remove non alphanumeric characters
-          s = s.replaceAll("[^a-zA-Z0-9]", "");
+        while (tokenizer.next()) {
           // Stem word.
-          s = stemmer.stem(s);
-
-          if (!s.equals("")) {
-            tmp.add(s);
+          String s = stem(tokenizer.buffer(), tokenizer.length(), stemmer);
+          document.add(s);
 
-            /* Write to stemmed file. */
-            if (!emptyLine) {
-              output.write(" ", 0, 1);
-            }
-            output.write(s, 0, s.length());
-            emptyLine = false;
+          /* Write to stemmed file. */
+          if (!emptyLine) {
+            output.write(" ", 0, 1);
           }
+          output.write(s, 0, s.length());
+          emptyLine = false;
         }
 
         /* Write new line to stemmed file (if you put anything on the line). */
         if (output != null && !emptyLine) {
           output.newLine();
         }
-
-        document.addAll(tmp);
       }
     } catch(IOException e) {
       System.err.println("Error closing stemmed cache file for " + title);
@@ -507,9 +880,13 @@ public class IRSystem
     for (File f : files) {
       try {
         BufferedReader input = new BufferedReader(new FileReader(f));
-        String title = f.getName().replaceAll("\\.txt", "");
-        titles.add(title);
-        documents.add(readStemmedFile(title, input));
+        try {
+          String title = f.getName().replaceAll("\\.txt", "");
+          titles.add(title);
+          documents.add(readStemmedFile(title, input));
+        } finally {
+          input.close();
+        }
       } catch(IOException e) {
         e.printStackTrace();
         System.exit(1);
@@ -517,6 +894,59 @@ public class IRSystem
     }
   }
 
+  /** Stems the files files[lo] up to files[hi] into documents[lo] up to
+   *  documents[hi], splitting the range in halves so that the pool's idle
+   *  workers can steal them.  Each worker thread stems with its own
+   *  PorterStemmer.
+   */
+  class StemTask extends RecursiveAction
+  {
+    final File[] files;
+    final String[] titles;
+    final ArrayList<ArrayList<String>> documents;
+    final String stemmedDirName;
+    final int lo, hi;
+
+    StemTask(File[] files, String[] titles, ArrayList<ArrayList<String>> documents,
+             String stemmedDirName, int lo, int hi)
+    {
+      this.files = files;
+      this.titles = titles;
+      this.documents = documents;
+      this.stemmedDirName = stemmedDirName;
+      this.lo = lo;
+      this.hi = hi;
+    }
+
+    protected void compute()
+    {
+      if (hi - lo > 1) {
+        int mid = (lo + hi) >>> 1;
+        invokeAll(new StemTask(files, titles, documents, stemmedDirName, lo, mid),
+                  new StemTask(files, titles, documents, stemmedDirName, mid, hi));
+        return;
+      }
+      try {
+        BufferedReader input = new BufferedReader(new FileReader(files[lo]));
+        try {
+          documents.set(lo, readRawFile(titles[lo], input, stemmedDirName, workerStemmer.get()));
+        } finally {
+          input.close();
+        }
+      } catch(IOException e) {
+        e.printStackTrace();
+        System.exit(1);
+      }
+    }
+  }
+
+  // One stemmer per ingestion thread; PorterStemmer keeps per-word state.
+  final ThreadLocal<PorterStemmer> workerStemmer = new ThreadLocal<PorterStemmer>() {
+    protected PorterStemmer initialValue() {
+      return new PorterStemmer();
+    }
+  };
+
   void readRawData(String dirName) {
     System.out.println("Stemming Documents...");
     String rawDirName = dirName + "/raw";
@@ -524,24 +954,36 @@ public class IRSystem
     new File(stemmedDirName).mkdir();
     titles = new ArrayList<String>();
     documents = new ArrayList<ArrayList<String>>();
-    int i = 1;
 
+    ArrayList<File> files = new ArrayList<File>();
     for (File f : new File(rawDirName).listFiles()) {
       if (f.getName().endsWith(".txt") && !f.getName().startsWith(".")) {
-        System.out.println("Filename: " + f.getName());
-        try {
-          BufferedReader input = new BufferedReader(new FileReader(f));
-          String title = f.getName().replaceAll(" \\d+\\.txt", "");
-          titles.add(title);
-          System.out.println("    Doc " + i + ": " + title);
-          documents.add(readRawFile(title, input, stemmedDirName));
-        } catch(IOException e) {
-          e.printStackTrace();
-          System.exit(1);
-        }
-        i++;
+        String title = f.getName().replaceAll(" \\d+\\.txt", "");
+        titles.add(title);
+        files.add(f);
+        documents.add(null);
       }
     }
+
+    /* Files are stemmed in parallel, but each document is stored at the
+     * position of its file, so titles and documents stay in the same order
+     * as a sequential read. */
+    ForkJoinPool pool = new ForkJoinPool();
+    try {
+      if (!files.isEmpty())
+        pool.invoke(new StemTask(files.toArray(new File[files.size()]),
+                                 titles.toArray(new String[titles.size()]),
+                                 documents, stemmedDirName, 0, files.size()));
+    } finally {
+      pool.shutdown();
+    }
+
+    for (int i = 0; i < files.size(); i++) {
+      System.out.println("Filename: " + files.get(i).getName());
+      System.out.println("    Doc " + (i + 1) + ": " + titles.get(i));
+    }
+    if (stemCache != null)
+      System.out.println("Stem cache: " + stemCache);
   }
 
   private void readData(String dirName) {
@@ -560,23 +1002,32 @@ public class IRSystem
       readRawData(dirName);
     }
 
-    ArrayList<String> titlesSorted = new ArrayList<String>(titles);
-    Collections.sort(titlesSorted);
-    ArrayList<ArrayList<String>> documentsSorted = new ArrayList<ArrayList<String>>();
-    for (int i = 0; i < titles.size(); i++) {
-      String title = titlesSorted.get(i);
-      documentsSorted.add(documents.get(titles.indexOf(title)));
+    // sorted by title through an array of positions, so that each document
+    // moves along with its title without looking the title up again
+    final List<String> unsorted = titles;
+    Integer[] order = new Integer[titles.size()];
+    for (int i = 0; i < order.length; i++)
+      order[i] = i;
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        return unsorted.get(a).compareTo(unsorted.get(b));
+      }
+    });
+    ArrayList<String> titlesSorted = new ArrayList<String>(order.length);
+    ArrayList<ArrayList<String>> documentsSorted = new ArrayList<ArrayList<String>>(order.length);
+    for (int i : order) {
+      titlesSorted.add(titles.get(i));
+      documentsSorted.add(documents.get(i));
     }
 
     documents = documentsSorted;
     titles = titlesSorted;
-
-    getUniqWords();
   }
 
 
+  /** The title of a document, or null if a merge has dropped it. */
   String getTitle(int titleIndex) {
-    return titles.get(titleIndex);
+    return searcher().getTitle(titleIndex);
   }
 
 
@@ -727,20 +1178,18 @@ public class IRSystem
           if (query.equalsIgnoreCase("x"))
               System.exit(0);
           
-          PriorityQueue<Integer> results = queryRank(query);
+          TopDocs results = queryRank(query, NUM_RESULTS);
           System.out.println("\nBest matching documents to '" + query + "':");
-          int numResults = results.size();
-          for (int i = 0; i < numResults; i++) 
+          for (int i = 0; i < results.size(); i++) 
           {
-                double score = results.getPriority();
-                String title = getTitle(results.next().intValue());
-                if (score > 0)
-                    System.out.println(score + ": " + title);
+                double score = results.score(i);
+                String title = getTitle(results.doc(i));
+                System.out.println(score + ": " + title);
           }
       }
   }
   
-  public static void main(String[] args) throws IOException 
+  public static void main(String[] args) throws IOException, InterruptedException 
   {
       if (args.length == 0)
       {
@@ -749,16 +1198,46 @@ public class IRSystem
           
           System.out.println("====== USAGE ======");
           System.out.println("java -jar SearchEngine.jar <data dir>");
+          System.out.println("java -jar SearchEngine.jar <data dir> serve [port]");
+          System.out.println("java -jar SearchEngine.jar <data dir> batch <query file> <result file> [threads] [rank|boolean]");
           System.out.println();
       }
       else
       {
           String dataDir = args[0];
+          File indexDir = new File(dataDir, INDEX_DIR);
 
-          IRSystem irSys = new IRSystem(dataDir);
-          irSys.index();
-          irSys.computeTFIDF();
-          irSys.runEngine();
+          IRSystem irSys;
+          if (IndexDirectory.exists(indexDir))
+          {
+              irSys = openIndex(indexDir);
+          }
+          else
+          {
+              irSys = new IRSystem(dataDir);
+              irSys.index();
+              irSys.computeTFIDF();
+              irSys.saveIndex(indexDir);
+          }
+
+          if (args.length > 1 && args[1].equals("serve"))
+          {
+              int port = args.length > 2 ? Integer.parseInt(args[2]) : SERVER_PORT;
+              SearchServer server = new SearchServer(irSys, port);
+              server.start();
+              System.out.println("Listening on http://localhost:" + server.port() + SearchServer.CONTEXT);
+          }
+          else if (args.length > 3 && args[1].equals("batch"))
+          {
+              int threads = args.length > 4 ? Integer.parseInt(args[4])
+                                            : Runtime.getRuntime().availableProcessors();
+              boolean ranked = args.length <= 5 || !args[5].equals("boolean");
+              BatchRunner runner = new BatchRunner(irSys, threads, ranked, NUM_RESULTS);
+              runner.run(new File(args[2]), new File(args[3]));
+              runner.report(System.out);
+          }
+          else
+              irSys.runEngine();
       }
   }
 }
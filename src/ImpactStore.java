@@ -0,0 +1,141 @@
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Sparse storage of (term, document) weights.  Only the documents a term
+ * actually occurs in have a weight, so memory grows with the number of
+ * postings rather than with vocabulary size times number of documents.  The
+ * weights of all terms are packed into one buffer, term after term, and the
+ * weights of a term line up with its postings: the weight of the posting
+ * with ordinal i of term t is at starts[t] + i.  The buffers may be slices
+ * of a memory-mapped index file, in which case the store is read-only.
+ *
+ * For ranked retrieval the store also keeps, per term, the largest weight
+ * divided by the norm of its document.  No document can score more than that
+ * for the term, which lets a query skip documents that cannot make its top k.
+ * The same maximum is kept for every block of Postings.SKIP_INTERVAL
+ * postings, with the last document of the block, so that a query can also
+ * skip stretches of documents where the term's weights are low.  Full blocks
+ * end where the skip entries of the postings do.
+ */
+public class ImpactStore {
+
+  DoubleBuffer weights;
+  IntBuffer starts;  // weights of term t are weights[starts[t]] up to weights[starts[t+1]]
+  // null until computeMaxImpacts()
+  DoubleBuffer maxImpacts;  // per term
+  IntBuffer blockStarts;  // blocks of term t are blockStarts[t] up to blockStarts[t+1]
+  IntBuffer blockLastDocs;
+  DoubleBuffer blockMaxImpacts;
+
+  ImpactStore(DoubleBuffer weights, IntBuffer starts, DoubleBuffer maxImpacts,
+              IntBuffer blockStarts, IntBuffer blockLastDocs, DoubleBuffer blockMaxImpacts) {
+    this.weights = weights;
+    this.starts = starts;
+    this.maxImpacts = maxImpacts;
+    this.blockStarts = blockStarts;
+    this.blockLastDocs = blockLastDocs;
+    this.blockMaxImpacts = blockMaxImpacts;
+  }
+
+  /**
+   * Creates a store with room for one weight per posting, all zero.
+   */
+  public ImpactStore(Postings postings) {
+    int[] starts = new int[postings.size() + 1];
+    for (int term = 0; term < postings.size(); term++) {
+      starts[term + 1] = starts[term] + postings.docFreq(term);
+    }
+    this.starts = IntBuffer.wrap(starts);
+    this.weights = DoubleBuffer.allocate(starts[postings.size()]);
+  }
+
+  /**
+   * Sets the weight of the posting with the given ordinal.
+   */
+  public void setWeight(int term, int ordinal, double weight) {
+    weights.put(starts.get(term) + ordinal, weight);
+  }
+
+  /**
+   * Gets the weight of the posting with the given ordinal.  Does not create
+   * any objects.
+   */
+  public double getWeight(int term, int ordinal) {
+    return weights.get(starts.get(term) + ordinal);
+  }
+
+  /**
+   * Records the maximum impact of every term and of every block, once all
+   * the weights are set.  norms holds the norm of each document of the
+   * postings.
+   */
+  public void computeMaxImpacts(Postings postings, DoubleBuffer norms) {
+    int numTerms = size();
+    int[] blocks = new int[numTerms + 1];
+    for (int term = 0; term < numTerms; term++) {
+      int df = postings.docFreq(term);
+      blocks[term + 1] = blocks[term] + (df + Postings.SKIP_INTERVAL - 1) / Postings.SKIP_INTERVAL;
+    }
+    double[] max = new double[numTerms];
+    int[] lastDocs = new int[blocks[numTerms]];
+    double[] blockMax = new double[blocks[numTerms]];
+    for (int term = 0; term < numTerms; term++) {
+      PostingsIterator it = postings.iterator(term);
+      while (it.next() != PostingsIterator.NO_MORE_DOCS) {
+        double impact = getWeight(term, it.ordinal()) / norms.get(it.doc());
+        int block = blocks[term] + it.ordinal() / Postings.SKIP_INTERVAL;
+        max[term] = Math.max(max[term], impact);
+        blockMax[block] = Math.max(blockMax[block], impact);
+        lastDocs[block] = it.doc();
+      }
+    }
+    maxImpacts = DoubleBuffer.wrap(max);
+    blockStarts = IntBuffer.wrap(blocks);
+    blockLastDocs = IntBuffer.wrap(lastDocs);
+    blockMaxImpacts = DoubleBuffer.wrap(blockMax);
+  }
+
+  /**
+   * The largest weight of the term divided by the norm of its document.
+   */
+  public double maxImpact(int term) {
+    return maxImpacts.get(term);
+  }
+
+  /**
+   * Index of the first block of the term; its blocks run up to the first
+   * block of the next term.
+   */
+  public int firstBlock(int term) {
+    return blockStarts.get(term);
+  }
+
+  /**
+   * The last document of a block.
+   */
+  public int blockLastDoc(int block) {
+    return blockLastDocs.get(block);
+  }
+
+  /**
+   * The largest weight in a block divided by the norm of its document.
+   */
+  public double blockMaxImpact(int block) {
+    return blockMaxImpacts.get(block);
+  }
+
+  /**
+   * The number of terms in the store.
+   */
+  public int size() {
+    return starts.limit() - 1;
+  }
+
+  /**
+   * Returns the total number of (term, document) entries in the store.
+   */
+  public int totalSize() {
+    return weights.limit();
+  }
+}
@@ -0,0 +1,187 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An index stored as a directory of segments.  Each segment is an IndexFile
+ * named after the segment with a ".seg" suffix.  If the segment has deleted
+ * documents, they are listed in a ".del" file whose name also carries the
+ * number of deletions, so that a new list never overwrites one that is in
+ * use.  A text manifest named "segments" gives the number of documents
+ * indexed so far and the segment counter on its first line.  Each following
+ * line lists one segment, in document order: its name, its docBase and its
+ * deletions file, or "-" if it has none.
+ *
+ * Replacing the manifest commits the index.  Segment and deletions files are
+ * written first and the manifest is renamed over the old one last, in one
+ * atomic step, so a reader opening the directory, or one opening it after a
+ * crash, sees either the old or the new index.  Files
+ * that the new manifest no longer refers to are deleted after it is written.
+ */
+public class IndexDirectory {
+  static final String MANIFEST = "segments";
+  static final String SEGMENT_SUFFIX = ".seg";
+  static final String DELETIONS_SUFFIX = ".del";
+
+  int numDocs;
+  int nextSegment;
+  List<Segment> segments;
+
+  IndexDirectory(int numDocs, int nextSegment, List<Segment> segments) {
+    this.numDocs = numDocs;
+    this.nextSegment = nextSegment;
+    this.segments = segments;
+  }
+
+  /**
+   * True if the directory holds a committed index.
+   */
+  public static boolean exists(File dir) {
+    return new File(dir, MANIFEST).exists();
+  }
+
+  /**
+   * Opens the index committed in a directory.  Segment files are mapped, not
+   * read.
+   */
+  public static IndexDirectory open(File dir) throws IOException {
+    BufferedReader input = new BufferedReader(new FileReader(new File(dir, MANIFEST)));
+    try {
+      String[] header = input.readLine().split(" ");
+      int numDocs = Integer.parseInt(header[0]);
+      int nextSegment = Integer.parseInt(header[1]);
+      List<Segment> segments = new ArrayList<Segment>();
+      String line;
+      while ((line = input.readLine()) != null) {
+        String[] fields = line.split(" ");
+        Segment segment = openSegment(new File(dir, fields[0] + SEGMENT_SUFFIX),
+                                      fields[0], Integer.parseInt(fields[1]));
+        if (!fields[2].equals("-"))
+          segment = segment.withLiveDocs(readLiveDocs(new File(dir, fields[2]), segment.numDocs()));
+        segments.add(segment);
+      }
+      return new IndexDirectory(numDocs, nextSegment, segments);
+    } finally {
+      input.close();
+    }
+  }
+
+  /**
+   * Maps one segment file.
+   */
+  public static Segment openSegment(File file, String name, int docBase) throws IOException {
+    IndexFile index = IndexFile.open(file);
+    return new Segment(name, index.dictionary(), index.postings(), index.impacts(),
+                       index.norms(), index.titles(), docBase, index.numDocs(),
+                       index.docIds(), file);
+  }
+
+  /**
+   * Writes a segment that only lives in memory to the directory and returns
+   * it mapped from there, with the same deletions.
+   */
+  public static Segment writeSegment(File dir, Segment segment) throws IOException {
+    File file = new File(dir, segment.name + SEGMENT_SUFFIX);
+    IndexFile.write(file, segment);
+    Segment written = openSegment(file, segment.name, segment.docBase);
+    if (segment.deletions != null)
+      written = written.withDeletions(segment.deletions);
+    return written;
+  }
+
+  /**
+   * Commits the given segments to the directory, writing the ones that are
+   * not stored there yet.  Returns the segments as stored in the directory.
+   * Unreferenced segment and deletions files are deleted, except the ones
+   * named in pending, which are still being written.
+   */
+  public static List<Segment> write(File dir, int numDocs, int nextSegment,
+                                    List<Segment> segments, Set<String> pending) throws IOException {
+    dir.mkdirs();
+    List<Segment> written = new ArrayList<Segment>();
+    Set<String> referenced = new HashSet<String>();
+    referenced.add(MANIFEST);
+    File tmp = new File(dir, MANIFEST + ".tmp");
+    BufferedWriter output = new BufferedWriter(new FileWriter(tmp));
+    try {
+      output.write(numDocs + " " + nextSegment);
+      output.newLine();
+      for (Segment segment : segments) {
+        if (segment.file == null || !dir.equals(segment.file.getParentFile()))
+          segment = writeSegment(dir, segment);
+        written.add(segment);
+        referenced.add(segment.file.getName());
+        String deletions = "-";
+        if (segment.numDeleted > 0) {
+          deletions = segment.name + "_" + segment.numDeleted + DELETIONS_SUFFIX;
+          File file = new File(dir, deletions);
+          if (!file.exists())
+            writeLiveDocs(file, segment);
+          referenced.add(deletions);
+        }
+        output.write(segment.name + " " + segment.docBase + " " + deletions);
+        output.newLine();
+      }
+    } finally {
+      output.close();
+    }
+    File manifest = new File(dir, MANIFEST);
+    IndexFile.replace(tmp, manifest);
+
+    for (File file : dir.listFiles()) {
+      String name = file.getName();
+      if ((name.endsWith(SEGMENT_SUFFIX) || name.endsWith(DELETIONS_SUFFIX))
+          && !referenced.contains(name) && !pending.contains(name))
+        file.delete();
+    }
+    return written;
+  }
+
+  /**
+   * Deletions files hold the number of deleted documents, then their numbers
+   * within the segment.
+   */
+  static void writeLiveDocs(File file, Segment segment) throws IOException {
+    File tmp = new File(file.getPath() + ".tmp");
+    DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+    try {
+      output.writeInt(segment.numDeleted);
+      for (int doc = 0; doc < segment.numDocs(); doc++) {
+        if (!segment.isLive(doc))
+          output.writeInt(doc);
+      }
+    } finally {
+      output.close();
+    }
+    IndexFile.replace(tmp, file);
+  }
+
+  static BitSet readLiveDocs(File file, int numDocs) throws IOException {
+    DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      BitSet live = new BitSet(numDocs);
+      live.set(0, numDocs);
+      int numDeleted = input.readInt();
+      for (int i = 0; i < numDeleted; i++) {
+        live.clear(input.readInt());
+      }
+      return live;
+    } finally {
+      input.close();
+    }
+  }
+}
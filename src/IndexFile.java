@@ -0,0 +1,318 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractList;
+import java.util.List;
+
+/**
+ * A binary file holding one segment of the index: the term dictionary, the
+ * compressed postings and their skip entries, the term positions, the
+ * terms of each document, the impacts, the document norms, the document titles and, for merged
+ * segments, the document indices.
+ * The maximum impact of each term and of each block of its postings is
+ * stored too, for pruning ranked queries.
+ * The file is written once and opened with a single FileChannel.map() call.  Every
+ * part of the index is then a buffer sliced out of the mapping, so nothing
+ * is read or decoded up front, pages are loaded by the OS as queries touch
+ * them, and processes serving the same file share its page cache.
+ *
+ * Layout: a header of magic number, version and document count, then a table
+ * of (offset, length) pairs, one per section, then the sections themselves,
+ * each starting on an 8 byte boundary.  All numbers are little-endian.  The
+ * whole file has to fit in one mapping, i.e. be smaller than 2GB.
+ */
+public class IndexFile {
+  static final long MAGIC = 0x5844494644494654L;  // "TFIDFIDX"
+  static final int VERSION = 6;
+  static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+  static final int DICT_BYTES = 0;
+  static final int DICT_OFFSETS = 1;
+  static final int POSTINGS = 2;
+  static final int POSTINGS_OFFSETS = 3;
+  static final int DOC_FREQS = 4;
+  static final int SKIP_STARTS = 5;
+  static final int SKIP_DOCS = 6;
+  static final int SKIP_OFFSETS = 7;
+  static final int IMPACT_STARTS = 8;
+  static final int IMPACTS = 9;
+  static final int NORMS = 10;
+  static final int TITLE_BYTES = 11;
+  static final int TITLE_OFFSETS = 12;
+  static final int DOC_IDS = 13;  // empty unless documents were dropped by a merge
+  static final int MAX_IMPACTS = 14;
+  static final int BLOCK_STARTS = 15;
+  static final int BLOCK_LAST_DOCS = 16;
+  static final int BLOCK_MAX_IMPACTS = 17;
+  static final int POSITIONS = 18;
+  static final int POSITION_OFFSETS = 19;
+  static final int SKIP_POSITION_OFFSETS = 20;
+  static final int DOC_TERMS = 21;
+  static final int DOC_TERM_OFFSETS = 22;
+  static final int NUM_SECTIONS = 23;
+
+  static final int HEADER_SIZE = 16 + 16 * NUM_SECTIONS;
+
+  int numDocs;
+  TermDictionary dictionary;
+  Postings postings;
+  ImpactStore impacts;
+  DoubleBuffer norms;
+  List<String> titles;
+  IntBuffer docIds;
+
+  IndexFile(int numDocs, TermDictionary dictionary, Postings postings,
+            ImpactStore impacts, DoubleBuffer norms, List<String> titles, IntBuffer docIds) {
+    this.numDocs = numDocs;
+    this.dictionary = dictionary;
+    this.postings = postings;
+    this.impacts = impacts;
+    this.norms = norms;
+    this.titles = titles;
+    this.docIds = docIds;
+  }
+
+  public int numDocs() {
+    return numDocs;
+  }
+
+  public TermDictionary dictionary() {
+    return dictionary;
+  }
+
+  public Postings postings() {
+    return postings;
+  }
+
+  public ImpactStore impacts() {
+    return impacts;
+  }
+
+  public DoubleBuffer norms() {
+    return norms;
+  }
+
+  public List<String> titles() {
+    return titles;
+  }
+
+  /**
+   * The document index of each document, or null if they are consecutive.
+   */
+  public IntBuffer docIds() {
+    return docIds;
+  }
+
+  // -----------------------------------------------------------------------
+
+  static ByteBuffer toBytes(ByteBuffer buffer) {
+    ByteBuffer src = buffer.duplicate();
+    src.position(0);
+    return src;
+  }
+
+  static ByteBuffer toBytes(IntBuffer buffer) {
+    IntBuffer src = buffer.duplicate();
+    src.position(0);
+    ByteBuffer bytes = ByteBuffer.allocate(4 * src.remaining()).order(ORDER);
+    bytes.asIntBuffer().put(src);
+    return bytes;
+  }
+
+  static ByteBuffer toBytes(DoubleBuffer buffer) {
+    DoubleBuffer src = buffer.duplicate();
+    src.position(0);
+    ByteBuffer bytes = ByteBuffer.allocate(8 * src.remaining()).order(ORDER);
+    bytes.asDoubleBuffer().put(src);
+    return bytes;
+  }
+
+  /**
+   * Writes a segment to the given file.  Deletions are not written.  The file
+   * is first written under a temporary name and then renamed, so a reader
+   * never sees it half written.
+   */
+  public static void write(File file, Segment segment) throws IOException {
+    List<String> titles = segment.titles;
+    int[] titleOffsets = new int[titles.size() + 1];
+    byte[][] encodedTitles = new byte[titles.size()][];
+    for (int i = 0; i < titles.size(); i++) {
+      encodedTitles[i] = titles.get(i).getBytes(TermDictionary.UTF8);
+      titleOffsets[i + 1] = titleOffsets[i] + encodedTitles[i].length;
+    }
+    ByteBuffer titleBytes = ByteBuffer.allocate(titleOffsets[titles.size()]);
+    for (byte[] title : encodedTitles) {
+      titleBytes.put(title);
+    }
+
+    ByteBuffer[] sections = new ByteBuffer[NUM_SECTIONS];
+    Postings postings = segment.postings;
+    sections[DICT_BYTES] = toBytes(segment.dictionary.bytes);
+    sections[DICT_OFFSETS] = toBytes(segment.dictionary.offsets);
+    sections[POSTINGS] = toBytes(postings.data);
+    sections[POSTINGS_OFFSETS] = toBytes(postings.offsets);
+    sections[DOC_FREQS] = toBytes(postings.docFreqs);
+    sections[SKIP_STARTS] = toBytes(postings.skipStarts);
+    sections[SKIP_DOCS] = toBytes(postings.skipDocs);
+    sections[SKIP_OFFSETS] = toBytes(postings.skipOffsets);
+    sections[IMPACT_STARTS] = toBytes(segment.impacts.starts);
+    sections[IMPACTS] = toBytes(segment.impacts.weights);
+    sections[NORMS] = toBytes(segment.norms);
+    sections[TITLE_BYTES] = toBytes(titleBytes);
+    sections[TITLE_OFFSETS] = toBytes(IntBuffer.wrap(titleOffsets));
+    sections[DOC_IDS] = toBytes(segment.docIds == null ? IntBuffer.allocate(0) : segment.docIds);
+    sections[MAX_IMPACTS] = toBytes(segment.impacts.maxImpacts);
+    sections[BLOCK_STARTS] = toBytes(segment.impacts.blockStarts);
+    sections[BLOCK_LAST_DOCS] = toBytes(segment.impacts.blockLastDocs);
+    sections[BLOCK_MAX_IMPACTS] = toBytes(segment.impacts.blockMaxImpacts);
+    sections[POSITIONS] = toBytes(postings.positions);
+    sections[POSITION_OFFSETS] = toBytes(postings.positionOffsets);
+    sections[SKIP_POSITION_OFFSETS] = toBytes(postings.skipPositionOffsets);
+    sections[DOC_TERMS] = toBytes(postings.docTerms);
+    sections[DOC_TERM_OFFSETS] = toBytes(postings.docTermOffsets);
+
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ORDER);
+    header.putLong(MAGIC);
+    header.putInt(VERSION);
+    header.putInt(segment.numDocs);
+    long offset = HEADER_SIZE;
+    for (ByteBuffer section : sections) {
+      header.putLong(offset);
+      header.putLong(section.remaining());
+      offset = align(offset + section.remaining());
+    }
+    header.flip();
+
+    File tmp = new File(file.getPath() + ".tmp");
+    RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+    try {
+      raf.setLength(0);
+      FileChannel channel = raf.getChannel();
+      writeFully(channel, header, 0);
+      offset = HEADER_SIZE;
+      for (ByteBuffer section : sections) {
+        int length = section.remaining();
+        writeFully(channel, section, offset);
+        offset = align(offset + length);
+      }
+      raf.setLength(offset);
+      channel.force(true);
+    } finally {
+      raf.close();
+    }
+    replace(tmp, file);
+  }
+
+  /**
+   * Renames a file over another in one atomic step, so that a crash leaves
+   * either the old or the new file, never neither.
+   */
+  static void replace(File from, File to) throws IOException {
+    Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE,
+               StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  static long align(long offset) {
+    return (offset + 7) & ~7L;
+  }
+
+  static void writeFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+    while (buffer.hasRemaining()) {
+      offset += channel.write(buffer, offset);
+    }
+  }
+
+  /**
+   * Maps a segment file written by write().
+   */
+  public static IndexFile open(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    ByteBuffer map;
+    try {
+      FileChannel channel = raf.getChannel();
+      if (channel.size() > Integer.MAX_VALUE)
+        throw new IOException("Index files over 2GB are not supported: " + file);
+      if (channel.size() < HEADER_SIZE)
+        throw new IOException("Not an index file: " + file);
+      map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      // the mapping stays valid after the channel is closed
+      raf.close();
+    }
+    map.order(ORDER);
+    if (map.getLong(0) != MAGIC)
+      throw new IOException("Not an index file: " + file);
+    if (map.getInt(8) != VERSION)
+      throw new IOException("Unsupported index version " + map.getInt(8) + ": " + file);
+    int numDocs = map.getInt(12);
+
+    ByteBuffer[] sections = new ByteBuffer[NUM_SECTIONS];
+    for (int i = 0; i < NUM_SECTIONS; i++) {
+      int offset = (int) map.getLong(16 + 16 * i);
+      int length = (int) map.getLong(24 + 16 * i);
+      ByteBuffer section = map.duplicate();
+      section.limit(offset + length);
+      section.position(offset);
+      sections[i] = section.slice().order(ORDER);
+    }
+
+    TermDictionary dictionary = new TermDictionary(sections[DICT_BYTES],
+        sections[DICT_OFFSETS].asIntBuffer());
+    Postings postings = new Postings(sections[POSTINGS],
+        sections[POSTINGS_OFFSETS].asIntBuffer(),
+        sections[DOC_FREQS].asIntBuffer(),
+        sections[SKIP_STARTS].asIntBuffer(),
+        sections[SKIP_DOCS].asIntBuffer(),
+        sections[SKIP_OFFSETS].asIntBuffer(),
+        sections[POSITIONS],
+        sections[POSITION_OFFSETS].asIntBuffer(),
+        sections[SKIP_POSITION_OFFSETS].asIntBuffer(),
+        sections[DOC_TERMS],
+        sections[DOC_TERM_OFFSETS].asIntBuffer());
+    ImpactStore impacts = new ImpactStore(sections[IMPACTS].asDoubleBuffer(),
+        sections[IMPACT_STARTS].asIntBuffer(),
+        sections[MAX_IMPACTS].asDoubleBuffer(),
+        sections[BLOCK_STARTS].asIntBuffer(),
+        sections[BLOCK_LAST_DOCS].asIntBuffer(),
+        sections[BLOCK_MAX_IMPACTS].asDoubleBuffer());
+    DoubleBuffer norms = sections[NORMS].asDoubleBuffer();
+    List<String> titles = new Titles(sections[TITLE_BYTES],
+        sections[TITLE_OFFSETS].asIntBuffer());
+    IntBuffer docIds = sections[DOC_IDS].asIntBuffer();
+    return new IndexFile(numDocs, dictionary, postings, impacts, norms, titles,
+                         docIds.limit() == 0 ? null : docIds);
+  }
+
+  /**
+   * Read-only list of the titles in the file, decoded on access.
+   */
+  static class Titles extends AbstractList<String> {
+    ByteBuffer bytes;
+    IntBuffer offsets;
+
+    Titles(ByteBuffer bytes, IntBuffer offsets) {
+      this.bytes = bytes;
+      this.offsets = offsets;
+    }
+
+    public String get(int i) {
+      int start = offsets.get(i);
+      byte[] title = new byte[offsets.get(i + 1) - start];
+      ByteBuffer src = bytes.duplicate();
+      src.position(start);
+      src.get(title);
+      return new String(title, TermDictionary.UTF8);
+    }
+
+    public int size() {
+      return offsets.limit() - 1;
+    }
+  }
+}
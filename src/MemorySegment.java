@@ -0,0 +1,191 @@
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Buffers the documents added to an index until they are flushed as a
+ * segment.  Adding a document
+ * appends one posting to each of its terms, and the positions of its
+ * occurrences, in growable arrays like the ones
+ * IRSystem.index() fills, so it costs time proportional to the length of the
+ * document, not of the corpus.  Documents are numbered from 0 in the order
+ * they are added, and from docBase in the index.
+ *
+ * The buffer is searched through segment(), a Segment encoded from the
+ * buffered postings.  It is built on the first call after a change and
+ * reused until the next one, and is also what gets flushed when the buffer
+ * is full.  Every method holds the buffer's lock, so a query thread taking
+ * segment() waits at most for one document to be added.
+ */
+public class MemorySegment {
+  String name;
+  int docBase;
+
+  HashMap<String, Integer> termIds = new HashMap<String, Integer>();
+  ArrayList<String> terms = new ArrayList<String>();
+  int[][] docs = new int[64][];
+  int[][] freqs = new int[64][];
+  int[] sizes = new int[64];
+  int[][] positions = new int[64][];  // freq positions per posting, in postings order
+  int[] numPositions = new int[64];
+  int[] deletedDocFreqs = new int[64];
+
+  int[][] docTerms = new int[16][];  // ids of the terms of each document
+  double[] norms = new double[16];
+  ArrayList<String> titles = new ArrayList<String>();
+  int numDocs;
+  BitSet liveDocs = new BitSet();
+  int numDeleted;
+
+  Segment segment;
+
+  public MemorySegment(String name, int docBase) {
+    this.name = name;
+    this.docBase = docBase;
+  }
+
+  public synchronized int numDocs() {
+    return numDocs;
+  }
+
+  public synchronized int numLiveDocs() {
+    return numDocs - numDeleted;
+  }
+
+  /**
+   * Adds a document given as its stemmed words, with its norm, and returns
+   * its number in the buffer.
+   */
+  public synchronized int addDocument(String title, List<String> words, double norm) {
+    int doc = numDocs;
+    if (doc == docTerms.length) {
+      docTerms = Arrays.copyOf(docTerms, 2 * doc);
+      norms = Arrays.copyOf(norms, 2 * doc);
+    }
+    int[] ids = new int[words.size()];
+    int numIds = 0;
+    for (int p = 0; p < words.size(); p++) {
+      String word = words.get(p);
+      Integer id = termIds.get(word);
+      if (id == null) {
+        id = terms.size();
+        termIds.put(word, id);
+        terms.add(word);
+        if (id == docs.length) {
+          docs = Arrays.copyOf(docs, 2 * id);
+          freqs = Arrays.copyOf(freqs, 2 * id);
+          sizes = Arrays.copyOf(sizes, 2 * id);
+          positions = Arrays.copyOf(positions, 2 * id);
+          numPositions = Arrays.copyOf(numPositions, 2 * id);
+          deletedDocFreqs = Arrays.copyOf(deletedDocFreqs, 2 * id);
+        }
+        docs[id] = new int[4];
+        freqs[id] = new int[4];
+        positions[id] = new int[4];
+      }
+      int t = id;
+      if (numPositions[t] == positions[t].length)
+        positions[t] = Arrays.copyOf(positions[t], 2 * numPositions[t]);
+      positions[t][numPositions[t]++] = p;
+      int n = sizes[t];
+      if (n > 0 && docs[t][n - 1] == doc) {
+        freqs[t][n - 1]++;
+        continue;
+      }
+      if (n == docs[t].length) {
+        docs[t] = Arrays.copyOf(docs[t], 2 * n);
+        freqs[t] = Arrays.copyOf(freqs[t], 2 * n);
+      }
+      docs[t][n] = doc;
+      freqs[t][n] = 1;
+      sizes[t]++;
+      ids[numIds++] = t;
+    }
+    docTerms[doc] = Arrays.copyOf(ids, numIds);
+    norms[doc] = norm;
+    titles.add(title);
+    liveDocs.set(doc);
+    numDocs++;
+    segment = null;
+    return doc;
+  }
+
+  /**
+   * The title of a buffered document.
+   */
+  public synchronized String title(int doc) {
+    return titles.get(doc);
+  }
+
+  /**
+   * Number of live buffered documents the term occurs in.
+   */
+  public synchronized int docFreq(String term) {
+    Integer id = termIds.get(term);
+    return id == null ? 0 : sizes[id] - deletedDocFreqs[id];
+  }
+
+  /**
+   * True if the buffered document is not deleted.
+   */
+  public synchronized boolean isLive(int doc) {
+    return liveDocs.get(doc);
+  }
+
+  /**
+   * Marks a buffered document as deleted.  Returns false if it already was.
+   */
+  public synchronized boolean delete(int doc) {
+    if (!liveDocs.get(doc))
+      return false;
+    liveDocs.clear(doc);
+    numDeleted++;
+    for (int t : docTerms[doc]) {
+      deletedDocFreqs[t]++;
+    }
+    segment = null;
+    return true;
+  }
+
+  /**
+   * The buffered documents as a Segment.
+   */
+  public synchronized Segment segment() {
+    if (segment != null)
+      return segment;
+    TermDictionary dictionary = new TermDictionary(terms);
+    int[] byId = new int[dictionary.size()];
+    for (int t = 0; t < terms.size(); t++)
+      byId[dictionary.lookup(terms.get(t))] = t;
+
+    Postings.Writer writer = new Postings.Writer();
+    for (int id = 0; id < byId.length; id++) {
+      int t = byId[id];
+      writer.startTerm();
+      int from = 0;
+      for (int i = 0; i < sizes[t]; i++) {
+        writer.add(docs[t][i], freqs[t][i], positions[t], from);
+        from += freqs[t][i];
+      }
+    }
+    Postings postings = writer.finish();
+    ImpactStore impacts = new ImpactStore(postings);
+    for (int id = 0; id < byId.length; id++) {
+      int t = byId[id];
+      for (int i = 0; i < sizes[t]; i++)
+        impacts.setWeight(id, i, Math.log10(freqs[t][i]) + 1.0);
+    }
+
+    DoubleBuffer docNorms = DoubleBuffer.wrap(Arrays.copyOf(norms, numDocs));
+    impacts.computeMaxImpacts(postings, docNorms);
+
+    Deletions deletions = numDeleted > 0 ? Deletions.of(liveDocs, numDocs, postings) : null;
+    segment = new Segment(name, dictionary, postings, impacts, docNorms,
+                          new ArrayList<String>(titles), docBase, numDocs, null, null,
+                          deletions);
+    return segment;
+  }
+}
@@ -87,11 +87,11 @@ class PorterStemmer
 
 
    /** Clears the buffer, essentially re-starting the PorterStemmer instance.
-    * Good for when you want to just stem one word at a time
+    * Good for when you want to just stem one word at a time.  The buffer
+    * itself is kept for the next word.
     */
    public void clear()
    {
-      b = new char[INC];
       i = 0;
       i_end = 0;
    }
@@ -371,11 +371,24 @@ class PorterStemmer
    }
 
 
+   /** Stems the word held in w[off] up to w[off+len-1], replacing whatever
+    * was in the buffer.  Nothing is allocated unless the word is longer than
+    * any seen before; the result is read with getResultBuffer() and
+    * getResultLength(), and is the same as stem(String) on that word.
+    */
+   public void stem(char[] w, int off, int len)
+   {  if (len >= b.length) b = new char[len+INC];
+      System.arraycopy(w, off, b, 0, len);
+      i = len;
+      stem();
+   }
+
     /** Function to just stem one word. */
    public String stem(String word)
-   {
-      clear();
-      add(word.toCharArray(), word.length());
+   {  int len = word.length();
+      if (len >= b.length) b = new char[len+INC];
+      word.getChars(0, len, b, 0);
+      i = len;
       stem();
       return toString();
    }
@@ -0,0 +1,316 @@
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * The postings of every term, compressed into a single byte buffer.  A term's
+ * postings are stored in increasing document order as (gap, freq) pairs,
+ * where gap is the difference to the previous document index (the first gap
+ * is the document index itself) and freq is the number of times the term
+ * occurs in the document.  Both are written as variable-byte integers: seven
+ * bits per byte, low bits first, with the high bit set on every byte but the
+ * last.  Gaps in all but the rarest terms are small, so a posting typically
+ * costs two or three bytes instead of a boxed Integer in an ArrayList.
+ *
+ * Every SKIP_INTERVAL postings a skip entry is recorded: the last document
+ * of the block just written and the byte offset where the next block
+ * starts.  PostingsIterator.advance() uses them to jump over whole blocks
+ * instead of decoding every posting on the way to its target.
+ *
+ * The positions of a term in each document, the indices of its occurrences
+ * among the document's words, are kept apart in a second byte buffer, so
+ * that queries without phrases never read them.  A posting's positions are
+ * the number of bytes they take, then freq variable-byte integers, each the
+ * difference to the previous position in the document (the first one is
+ * the position itself).  The postings of a term have their positions back
+ * to back in postings order, and the lengths let a reader step over the
+ * positions of the postings it passes without decoding them.  Every skip
+ * entry also records where the positions of the next block start.
+ *
+ * The ids of the terms of each document are kept too, in increasing order
+ * as variable-byte gaps, so that the terms of a deleted document can be
+ * found without probing the postings of every term.
+ *
+ * Postings are read through a PostingsIterator.  The i-th posting of a term
+ * has ordinal i, which is how per-posting data such as weights kept
+ * elsewhere are lined up with it.  All the buffers may be slices of a
+ * memory-mapped index file.
+ */
+public class Postings {
+  public static final int SKIP_INTERVAL = 128;
+
+  ByteBuffer data;
+  IntBuffer offsets;  // postings of term t are data[offsets[t]] up to data[offsets[t+1]]
+  IntBuffer docFreqs;
+  IntBuffer skipStarts;  // skip entries of term t are skipDocs[skipStarts[t]] up to skipDocs[skipStarts[t+1]]
+  IntBuffer skipDocs;
+  IntBuffer skipOffsets;
+  ByteBuffer positions;
+  IntBuffer positionOffsets;  // positions of term t start at positions[positionOffsets[t]]
+  IntBuffer skipPositionOffsets;  // per skip entry, where the positions of the next block start
+  ByteBuffer docTerms;
+  IntBuffer docTermOffsets;  // terms of document d are docTerms[docTermOffsets[d]] up to docTerms[docTermOffsets[d+1]]
+
+  Postings(ByteBuffer data, IntBuffer offsets, IntBuffer docFreqs,
+           IntBuffer skipStarts, IntBuffer skipDocs, IntBuffer skipOffsets,
+           ByteBuffer positions, IntBuffer positionOffsets, IntBuffer skipPositionOffsets,
+           ByteBuffer docTerms, IntBuffer docTermOffsets) {
+    this.data = data;
+    this.offsets = offsets;
+    this.docFreqs = docFreqs;
+    this.skipStarts = skipStarts;
+    this.skipDocs = skipDocs;
+    this.skipOffsets = skipOffsets;
+    this.positions = positions;
+    this.positionOffsets = positionOffsets;
+    this.skipPositionOffsets = skipPositionOffsets;
+    this.docTerms = docTerms;
+    this.docTermOffsets = docTermOffsets;
+  }
+
+  /**
+   * Number of terms.
+   */
+  public int size() {
+    return docFreqs.limit();
+  }
+
+  /**
+   * Number of documents the term occurs in.
+   */
+  public int docFreq(int term) {
+    return docFreqs.get(term);
+  }
+
+  /**
+   * Number of bytes used by the encoded postings of all terms.
+   */
+  public int sizeInBytes() {
+    return offsets.get(offsets.limit() - 1);
+  }
+
+  /**
+   * Number of bytes used by the encoded positions of all terms.
+   */
+  public int positionsSizeInBytes() {
+    return positionOffsets.get(positionOffsets.limit() - 1);
+  }
+
+  /**
+   * Returns an iterator positioned before the first posting of the term.
+   */
+  public PostingsIterator iterator(int term) {
+    return new PostingsIterator(data, offsets.get(term), docFreqs.get(term),
+                                skipDocs, skipOffsets, skipStarts.get(term), skipStarts.get(term + 1),
+                                positions, positionOffsets.get(term), skipPositionOffsets);
+  }
+
+  /**
+   * Decodes the document indices of a term into a new array.
+   */
+  public int[] docs(int term) {
+    int[] docs = new int[docFreq(term)];
+    PostingsIterator it = iterator(term);
+    for (int i = 0; i < docs.length; i++) {
+      docs[i] = it.next();
+    }
+    return docs;
+  }
+
+  /**
+   * Decodes the ids of the terms that occur in a document into a new array,
+   * in increasing order.
+   */
+  public int[] terms(int doc) {
+    if (doc + 1 >= docTermOffsets.limit())
+      return new int[0];
+    int pos = docTermOffsets.get(doc);
+    int end = docTermOffsets.get(doc + 1);
+    int[] terms = new int[end - pos];
+    int n = 0;
+    int term = 0;
+    while (pos < end) {
+      int gap = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = docTerms.get(pos++);
+        gap |= (b & 0x7f) << shift;
+        shift += 7;
+      } while (b < 0);
+      term += gap;
+      terms[n++] = term;
+    }
+    return Arrays.copyOf(terms, n);
+  }
+
+  static int vIntSize(int value) {
+    int size = 1;
+    while ((value & ~0x7f) != 0) {
+      value >>>= 7;
+      size++;
+    }
+    return size;
+  }
+
+  static int writeVInt(byte[] buf, int pos, int value) {
+    while ((value & ~0x7f) != 0) {
+      buf[pos++] = (byte) ((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    buf[pos++] = (byte) value;
+    return pos;
+  }
+
+  /**
+   * Encodes postings term by term, in term id order.
+   */
+  public static class Writer {
+    byte[] buf = new byte[1024];
+    int pos;
+    int[] offsets = new int[16];
+    int[] docFreqs = new int[16];
+    int[] skipStarts = new int[16];
+    int[] skipDocs = new int[16];
+    int[] skipOffsets = new int[16];
+    byte[] positionBuf = new byte[1024];
+    int positionPos;
+    int[] positionOffsets = new int[16];
+    int[] skipPositionOffsets = new int[16];
+    int[] postingDocs = new int[16];  // document of every posting, in postings order
+    int numPostings;
+    int numDocs;
+    int numSkips;
+    int numTerms;
+    int lastDoc;
+
+    /**
+     * Starts the postings of the next term id.
+     */
+    public void startTerm() {
+      if (numTerms + 1 >= offsets.length) {
+        offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+        docFreqs = Arrays.copyOf(docFreqs, 2 * docFreqs.length);
+        skipStarts = Arrays.copyOf(skipStarts, 2 * skipStarts.length);
+        positionOffsets = Arrays.copyOf(positionOffsets, 2 * positionOffsets.length);
+      }
+      offsets[numTerms] = pos;
+      positionOffsets[numTerms] = positionPos;
+      skipStarts[numTerms] = numSkips;
+      numTerms++;
+      lastDoc = 0;
+    }
+
+    /**
+     * Adds a posting to the current term, with the positions of its freq
+     * occurrences, positions[from] up to positions[from + freq - 1], in
+     * increasing order.  Documents must be added in increasing order.
+     */
+    public void add(int doc, int freq, int[] positions, int from) {
+      int term = numTerms - 1;
+      if (docFreqs[term] > 0 && doc <= lastDoc)
+        throw new IllegalArgumentException("documents out of order: " + doc + " after " + lastDoc);
+      if (pos + 10 > buf.length)
+        buf = Arrays.copyOf(buf, 2 * buf.length);
+      pos = writeVInt(buf, pos, doc - lastDoc);
+      pos = writeVInt(buf, pos, freq);
+      if (positionPos + 5 * freq + 5 > positionBuf.length)
+        positionBuf = Arrays.copyOf(positionBuf, Math.max(2 * positionBuf.length, positionPos + 5 * freq + 5));
+      int length = 0;
+      int lastPosition = 0;
+      for (int i = from; i < from + freq; i++) {
+        length += vIntSize(positions[i] - lastPosition);
+        lastPosition = positions[i];
+      }
+      positionPos = writeVInt(positionBuf, positionPos, length);
+      lastPosition = 0;
+      for (int i = from; i < from + freq; i++) {
+        positionPos = writeVInt(positionBuf, positionPos, positions[i] - lastPosition);
+        lastPosition = positions[i];
+      }
+      if (numPostings == postingDocs.length)
+        postingDocs = Arrays.copyOf(postingDocs, 2 * numPostings);
+      postingDocs[numPostings++] = doc;
+      numDocs = Math.max(numDocs, doc + 1);
+      lastDoc = doc;
+      docFreqs[term]++;
+      if (docFreqs[term] % SKIP_INTERVAL == 0) {
+        if (numSkips == skipDocs.length) {
+          skipDocs = Arrays.copyOf(skipDocs, 2 * numSkips);
+          skipOffsets = Arrays.copyOf(skipOffsets, 2 * numSkips);
+          skipPositionOffsets = Arrays.copyOf(skipPositionOffsets, 2 * numSkips);
+        }
+        skipDocs[numSkips] = doc;
+        skipOffsets[numSkips] = pos;
+        skipPositionOffsets[numSkips] = positionPos;
+        numSkips++;
+      }
+    }
+
+    public Postings finish() {
+      // sort the postings by document; going through them in term order
+      // leaves the terms of each document in increasing order
+      int[] starts = new int[numDocs + 1];
+      for (int i = 0; i < numPostings; i++)
+        starts[postingDocs[i] + 1]++;
+      for (int d = 0; d < numDocs; d++)
+        starts[d + 1] += starts[d];
+      int[] next = Arrays.copyOf(starts, numDocs);
+      int[] terms = new int[numPostings];
+      int i = 0;
+      for (int term = 0; term < numTerms; term++) {
+        for (int end = i + docFreqs[term]; i < end; i++)
+          terms[next[postingDocs[i]]++] = term;
+      }
+      byte[] docTermBuf = new byte[5 * numPostings];
+      int[] docTermOffsets = new int[numDocs + 1];
+      int docTermPos = 0;
+      for (int d = 0; d < numDocs; d++) {
+        docTermOffsets[d] = docTermPos;
+        int last = 0;
+        for (int j = starts[d]; j < starts[d + 1]; j++) {
+          docTermPos = writeVInt(docTermBuf, docTermPos, terms[j] - last);
+          last = terms[j];
+        }
+      }
+      docTermOffsets[numDocs] = docTermPos;
+
+      offsets[numTerms] = pos;
+      skipStarts[numTerms] = numSkips;
+      positionOffsets[numTerms] = positionPos;
+      return new Postings(ByteBuffer.wrap(Arrays.copyOf(buf, pos)),
+                          IntBuffer.wrap(Arrays.copyOf(offsets, numTerms + 1)),
+                          IntBuffer.wrap(Arrays.copyOf(docFreqs, numTerms)),
+                          IntBuffer.wrap(Arrays.copyOf(skipStarts, numTerms + 1)),
+                          IntBuffer.wrap(Arrays.copyOf(skipDocs, numSkips)),
+                          IntBuffer.wrap(Arrays.copyOf(skipOffsets, numSkips)),
+                          ByteBuffer.wrap(Arrays.copyOf(positionBuf, positionPos)),
+                          IntBuffer.wrap(Arrays.copyOf(positionOffsets, numTerms + 1)),
+                          IntBuffer.wrap(Arrays.copyOf(skipPositionOffsets, numSkips)),
+                          ByteBuffer.wrap(Arrays.copyOf(docTermBuf, docTermPos)),
+                          IntBuffer.wrap(docTermOffsets));
+    }
+  }
+
+  public static void main(String[] args) {
+    Postings.Writer writer = new Postings.Writer();
+    writer.startTerm();
+    writer.add(3, 1, new int[] { 5 }, 0);
+    writer.add(200, 2, new int[] { 0, 9 }, 0);
+    writer.add(70000, 1, new int[] { 2 }, 0);
+    writer.startTerm();
+    for (int d = 0; d < 10000; d += 7) {
+      writer.add(d, 1, new int[] { d % 100 }, 0);
+    }
+    Postings postings = writer.finish();
+    System.out.println("Term 0: " + Arrays.toString(postings.docs(0)));
+    System.out.println("Bytes: " + postings.sizeInBytes());
+    PostingsIterator it = postings.iterator(1);
+    System.out.println("Advance term 1 to 500: " + it.advance(500) + " (ordinal " + it.ordinal() + ")");
+    System.out.println("Advance term 1 to 5000: " + it.advance(5000) + " at position " + it.nextPosition());
+    it = postings.iterator(0);
+    it.advance(200);
+    System.out.println("Term 0 in document 200 at positions " + it.nextPosition() + ", " + it.nextPosition());
+    System.out.println("Terms of document 70: " + Arrays.toString(postings.terms(70)));
+  }
+}
@@ -0,0 +1,205 @@
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Decodes the postings of one term, in increasing document order.  The
+ * iterator starts before the first posting; next() and advance() move it
+ * forward and return the new document, or NO_MORE_DOCS once the postings are
+ * exhausted.  advance() first gallops over the term's skip entries to the
+ * last block that ends before its target, so reaching a far away document
+ * costs a logarithmic number of skip reads plus at most one block of
+ * decoding.
+ *
+ * nextPosition() reads the positions of the current posting.  Positions are
+ * only decoded when asked for: the positions of the postings passed on the
+ * way are stepped over by their length on the next call to nextPosition(),
+ * and a jump through the skip entries also jumps to the positions of the
+ * block it lands in.
+ */
+public class PostingsIterator {
+  public static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+
+  ByteBuffer data;
+  int pos;
+  int docFreq;
+  int ordinal = -1;
+  int doc = -1;
+  int freq;
+  int decoded;  // postings decoded so far
+
+  IntBuffer skipDocs;
+  IntBuffer skipOffsets;
+  int skipStart;
+  int skipEnd;
+
+  ByteBuffer positions;
+  int positionPos;  // where the next position, or the next posting's positions, start
+  int positionOrdinal;  // the posting whose positions start at positionPos, until started
+  boolean positionsStarted;  // whether the current posting's positions are being read
+  int positionEnd;  // end of the current posting's positions, once started
+  int position;
+  IntBuffer skipPositionOffsets;
+
+  PostingsIterator(ByteBuffer data, int start, int docFreq,
+                   IntBuffer skipDocs, IntBuffer skipOffsets, int skipStart, int skipEnd,
+                   ByteBuffer positions, int positionStart, IntBuffer skipPositionOffsets) {
+    this.data = data;
+    this.pos = start;
+    this.docFreq = docFreq;
+    this.skipDocs = skipDocs;
+    this.skipOffsets = skipOffsets;
+    this.skipStart = skipStart;
+    this.skipEnd = skipEnd;
+    this.positions = positions;
+    this.positionPos = positionStart;
+    this.skipPositionOffsets = skipPositionOffsets;
+  }
+
+  int readVInt() {
+    byte b = data.get(pos++);
+    int value = b & 0x7f;
+    for (int shift = 7; b < 0; shift += 7) {
+      b = data.get(pos++);
+      value |= (b & 0x7f) << shift;
+    }
+    return value;
+  }
+
+  /**
+   * Moves to the next posting and returns its document.
+   */
+  public int next() {
+    if (ordinal + 1 >= docFreq) {
+      ordinal = docFreq;
+      doc = NO_MORE_DOCS;
+      return doc;
+    }
+    if (positionsStarted) {
+      positionPos = positionEnd;
+      positionOrdinal = ordinal + 1;
+      positionsStarted = false;
+    }
+    ordinal++;
+    doc = (ordinal == 0 ? 0 : doc) + readVInt();
+    freq = readVInt();
+    decoded++;
+    return doc;
+  }
+
+  /**
+   * Moves to the first posting whose document is at least target and returns
+   * that document.  Never moves backwards: if the current document is already
+   * at or past target, it is returned unchanged.
+   */
+  public int advance(int target) {
+    if (doc >= target)
+      return doc;
+    skipTo(target);
+    while (doc < target) {
+      next();
+    }
+    return doc;
+  }
+
+  /**
+   * Jumps to the end of the last block whose last document is below target,
+   * if that is ahead of the current posting.  Skip entry j marks the end of
+   * block j, i.e. the posting with ordinal (j + 1) * SKIP_INTERVAL - 1.
+   */
+  protected void skipTo(int target) {
+    // first skip entry that is ahead of the current posting
+    int lo = skipStart + (ordinal + 1) / Postings.SKIP_INTERVAL;
+    if (lo >= skipEnd || skipDocs.get(lo) >= target)
+      return;
+    // gallop until an entry reaches target, then binary search the last
+    // entry below it
+    int step = 1;
+    int hi = lo + step;
+    while (hi < skipEnd && skipDocs.get(hi) < target) {
+      lo = hi;
+      step *= 2;
+      hi = lo + step;
+    }
+    if (hi > skipEnd)
+      hi = skipEnd;
+    while (hi - lo > 1) {
+      int mid = (lo + hi) >>> 1;
+      if (skipDocs.get(mid) < target)
+        lo = mid;
+      else
+        hi = mid;
+    }
+    ordinal = (lo - skipStart + 1) * Postings.SKIP_INTERVAL - 1;
+    doc = skipDocs.get(lo);
+    pos = skipOffsets.get(lo);
+    positionPos = skipPositionOffsets.get(lo);
+    positionOrdinal = ordinal + 1;
+    positionsStarted = false;
+  }
+
+  /**
+   * Returns the next position of the term in the current document, in
+   * increasing order.  Must be called at most freq() times per posting.
+   */
+  public int nextPosition() {
+    if (!positionsStarted) {
+      // step over the positions of the postings passed since the last call
+      for (; positionOrdinal < ordinal; positionOrdinal++) {
+        int length = readPositionVInt();
+        positionPos += length;
+      }
+      int length = readPositionVInt();
+      positionEnd = positionPos + length;
+      positionsStarted = true;
+      position = 0;
+    }
+    position += readPositionVInt();
+    return position;
+  }
+
+  int readPositionVInt() {
+    byte b = positions.get(positionPos++);
+    int value = b & 0x7f;
+    for (int shift = 7; b < 0; shift += 7) {
+      b = positions.get(positionPos++);
+      value |= (b & 0x7f) << shift;
+    }
+    return value;
+  }
+
+  /**
+   * The current document, -1 before the first call to next().
+   */
+  public int doc() {
+    return doc;
+  }
+
+  /**
+   * Number of times the term occurs in the current document.
+   */
+  public int freq() {
+    return freq;
+  }
+
+  /**
+   * Position of the current posting in the term's postings, counting from 0.
+   */
+  public int ordinal() {
+    return ordinal;
+  }
+
+  /**
+   * Number of postings decoded so far.  Postings jumped over by advance()
+   * are not decoded.
+   */
+  public int decoded() {
+    return decoded;
+  }
+
+  /**
+   * Number of documents in the term's postings.
+   */
+  public int docFreq() {
+    return docFreq;
+  }
+}
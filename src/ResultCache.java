@@ -0,0 +1,347 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, thread-safe cache of query results.  Query traffic is heavy
+ * tailed, so a few queries make up much of it, and answering them again
+ * from the index repeats work that gives the same result until the index
+ * changes.
+ *
+ * Results are keyed by the stemmed query words in sorted order, so queries
+ * that only differ in word order, case or inflection share an entry.  For
+ * boolean queries repeated words are also dropped; ranked queries keep them,
+ * as a repeated word weighs more in the cosine score.  The phrases of a
+ * query follow its words in the key, in sorted order and without repeats.
+ *
+ * Every entry remembers the segments it was computed from.  A result is only
+ * returned to a searcher over the very same segments, and the cache empties
+ * itself the first time a result from other segments is stored, which is
+ * how additions, deletions and merges invalidate it.  Entries older than the
+ * time to live, if one is set, are dropped too.  Like StemCache, the cache is
+ * split into LRU shards by the hash of the key, each behind its own lock.
+ */
+public class ResultCache {
+  static final int NUM_SHARDS = 16;
+
+  final Shard[] shards;
+  final int maxSize;
+  final long ttlNanos;  // 0 if entries do not expire
+
+  // the segments the cached results were computed from
+  volatile List<Segment> current;
+
+  final AtomicLong hits = new AtomicLong();
+  final AtomicLong misses = new AtomicLong();
+  final AtomicLong evictions = new AtomicLong();
+  final AtomicLong expirations = new AtomicLong();
+  final AtomicLong invalidations = new AtomicLong();
+
+  /**
+   * The sorted stemmed words and phrases of a query and the number of
+   * results asked for, or -1 for a boolean query.
+   */
+  static class Key {
+    final String[] terms;
+    final int k;
+    final int hash;
+
+    Key(String[] terms, int k) {
+      this.terms = terms;
+      this.k = k;
+      this.hash = 31 * Arrays.hashCode(terms) + k;
+    }
+
+    /**
+     * The key of a ranked query for its top k results.
+     */
+    static Key ranked(List<String> query, int k) {
+      return ranked(query, Searcher.NO_PHRASES, k);
+    }
+
+    /**
+     * The key of a ranked query with phrases for its top k results.
+     */
+    static Key ranked(List<String> query, List<List<String>> phrases, int k) {
+      String[] terms = query.toArray(new String[query.size()]);
+      Arrays.sort(terms);
+      return new Key(withPhrases(terms, terms.length, phrases), k);
+    }
+
+    /**
+     * The key of a boolean query.
+     */
+    static Key matching(List<String> query) {
+      return matching(query, Searcher.NO_PHRASES);
+    }
+
+    /**
+     * The key of a boolean query with phrases.
+     */
+    static Key matching(List<String> query, List<List<String>> phrases) {
+      String[] terms = query.toArray(new String[query.size()]);
+      Arrays.sort(terms);
+      return new Key(withPhrases(terms, unique(terms, terms.length), phrases), -1);
+    }
+
+    /**
+     * Drops the repeats from the first n strings, which must be sorted, and
+     * returns how many are left.
+     */
+    static int unique(String[] strings, int n) {
+      int m = 0;
+      for (int i = 0; i < n; i++) {
+        if (i == 0 || !strings[i].equals(strings[i - 1]))
+          strings[m++] = strings[i];
+      }
+      return m;
+    }
+
+    /**
+     * The first n terms followed by the phrases, each written as its words
+     * in double quotes, which no word contains.
+     */
+    static String[] withPhrases(String[] terms, int n, List<List<String>> phrases) {
+      if (phrases.isEmpty())
+        return n == terms.length ? terms : Arrays.copyOf(terms, n);
+      String[] quoted = new String[phrases.size()];
+      for (int p = 0; p < quoted.length; p++) {
+        StringBuilder phrase = new StringBuilder("\"");
+        for (String word : phrases.get(p)) {
+          if (phrase.length() > 1)
+            phrase.append(' ');
+          phrase.append(word);
+        }
+        quoted[p] = phrase.append('"').toString();
+      }
+      Arrays.sort(quoted);
+      int m = unique(quoted, quoted.length);
+      String[] key = Arrays.copyOf(terms, n + m);
+      System.arraycopy(quoted, 0, key, n, m);
+      return key;
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof Key))
+        return false;
+      Key other = (Key) o;
+      return hash == other.hash && k == other.k && Arrays.equals(terms, other.terms);
+    }
+
+    public int hashCode() {
+      return hash;
+    }
+
+    public String toString() {
+      return Arrays.toString(terms) + (k < 0 ? "" : " top " + k);
+    }
+  }
+
+  static class CachedResult {
+    final List<Segment> segments;
+    final Object result;
+    final long created;
+
+    CachedResult(List<Segment> segments, Object result, long created) {
+      this.segments = segments;
+      this.result = result;
+      this.created = created;
+    }
+  }
+
+  /**
+   * One LRU map of the cache; access order is updated by get(), so every
+   * access must hold the shard's lock.
+   */
+  class Shard extends LinkedHashMap<Key, CachedResult> {
+    final int capacity;
+
+    Shard(int capacity) {
+      super(16, 0.75f, true);
+      this.capacity = capacity;
+    }
+
+    protected boolean removeEldestEntry(Map.Entry<Key, CachedResult> eldest) {
+      if (size() <= capacity)
+        return false;
+      evictions.incrementAndGet();
+      return true;
+    }
+  }
+
+  /**
+   * Creates a cache holding at most (about) maxSize results, each for at
+   * most ttlMillis milliseconds, or until the index changes if ttlMillis is
+   * 0.
+   */
+  public ResultCache(int maxSize, long ttlMillis) {
+    if (maxSize <= 0)
+      throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+    if (ttlMillis < 0)
+      throw new IllegalArgumentException("ttlMillis must not be negative: " + ttlMillis);
+    this.maxSize = maxSize;
+    this.ttlNanos = ttlMillis * 1000000L;
+    int numShards = maxSize < NUM_SHARDS ? 1 : NUM_SHARDS;
+    shards = new Shard[numShards];
+    for (int i = 0; i < numShards; i++) {
+      shards[i] = new Shard((maxSize + numShards - 1) / numShards);
+    }
+  }
+
+  Shard shardFor(Key key) {
+    int h = key.hash;
+    h ^= (h >>> 16);
+    return shards[(h & 0x7fffffff) % shards.length];
+  }
+
+  /**
+   * True if both lists hold the same segment objects in the same order.
+   */
+  static boolean sameSegments(List<Segment> a, List<Segment> b) {
+    if (a == b)
+      return true;
+    if (a == null || b == null || a.size() != b.size())
+      return false;
+    for (int i = 0; i < a.size(); i++) {
+      if (a.get(i) != b.get(i))
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Returns the cached result of a query over the given segments, or null.
+   */
+  public Object get(List<Segment> searched, Key key) {
+    Shard shard = shardFor(key);
+    CachedResult entry;
+    synchronized (shard) {
+      entry = shard.get(key);
+      if (entry != null && ttlNanos > 0 && System.nanoTime() - entry.created > ttlNanos) {
+        shard.remove(key);
+        expirations.incrementAndGet();
+        entry = null;
+      }
+    }
+    if (entry == null || !sameSegments(entry.segments, searched)) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return entry.result;
+  }
+
+  /**
+   * Caches the result of a query over the given segments.  The result must
+   * not be modified afterwards.
+   */
+  public void put(List<Segment> searched, Key key, Object result) {
+    if (!sameSegments(current, searched)) {
+      synchronized (this) {
+        if (!sameSegments(current, searched)) {
+          clearEntries();
+          if (current != null)
+            invalidations.incrementAndGet();
+          current = searched;
+        }
+      }
+    }
+    Shard shard = shardFor(key);
+    synchronized (shard) {
+      shard.put(key, new CachedResult(searched, result, System.nanoTime()));
+    }
+  }
+
+  void clearEntries() {
+    for (Shard shard : shards) {
+      synchronized (shard) {
+        shard.clear();
+      }
+    }
+  }
+
+  public long hits() {
+    return hits.get();
+  }
+
+  public long misses() {
+    return misses.get();
+  }
+
+  public long evictions() {
+    return evictions.get();
+  }
+
+  public long expirations() {
+    return expirations.get();
+  }
+
+  /**
+   * Number of times the cache was emptied because the index changed.
+   */
+  public long invalidations() {
+    return invalidations.get();
+  }
+
+  /**
+   * Fraction of lookups that were hits, 0 if there were none.
+   */
+  public double hitRate() {
+    long h = hits.get();
+    long total = h + misses.get();
+    return total == 0 ? 0.0 : (double) h / total;
+  }
+
+  /**
+   * Number of results currently cached.
+   */
+  public int size() {
+    int size = 0;
+    for (Shard shard : shards) {
+      synchronized (shard) {
+        size += shard.size();
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Empties the cache and resets the counters.
+   */
+  public synchronized void clear() {
+    clearEntries();
+    current = null;
+    hits.set(0);
+    misses.set(0);
+    evictions.set(0);
+    expirations.set(0);
+    invalidations.set(0);
+  }
+
+  public String toString() {
+    return "size " + size() + "/" + maxSize + ", hits " + hits() + ", misses " + misses() +
+        ", evictions " + evictions() + ", expirations " + expirations() +
+        ", invalidations " + invalidations() + ", hit rate " + String.format("%.3f", hitRate());
+  }
+
+  public static void main(String[] args) {
+    ResultCache cache = new ResultCache(100, 0);
+    List<Segment> index = new ArrayList<Segment>();
+    Key key = Key.ranked(Arrays.asList("york", "new"), 10);
+    System.out.println(key + " -> " + cache.get(index, key));
+    cache.put(index, key, "results");
+    System.out.println(Key.ranked(Arrays.asList("new", "york"), 10) + " -> "
+                       + cache.get(index, Key.ranked(Arrays.asList("new", "york"), 10)));
+    List<List<String>> phrases = new ArrayList<List<String>>();
+    phrases.add(Arrays.asList("new", "york"));
+    System.out.println(Key.ranked(Arrays.asList("new", "york"), phrases, 10) + " -> "
+                       + cache.get(index, Key.ranked(Arrays.asList("new", "york"), phrases, 10)));
+    List<Segment> changed = new ArrayList<Segment>();
+    changed.add(null);
+    System.out.println(key + " after a change -> " + cache.get(changed, key));
+    System.out.println(cache);
+  }
+}
@@ -0,0 +1,68 @@
+/**
+ * Scratch space for summing per-document scores during a query.  Scores live
+ * in a double[] indexed by document, and the documents that received a score
+ * are remembered so that clear() and iteration only touch those, not the
+ * whole corpus.  One accumulator can be reused across queries.
+ */
+public class ScoreAccumulator {
+  double[] scores;
+  boolean[] seen;
+  int[] touched;
+  int numTouched;
+
+  public ScoreAccumulator(int numDocs) {
+    scores = new double[numDocs];
+    seen = new boolean[numDocs];
+    touched = new int[16];
+  }
+
+  /**
+   * Adds to the score of a document.
+   */
+  public void add(int doc, double score) {
+    if (!seen[doc]) {
+      seen[doc] = true;
+      if (numTouched == touched.length) {
+        int[] newTouched = new int[2 * touched.length];
+        System.arraycopy(touched, 0, newTouched, 0, numTouched);
+        touched = newTouched;
+      }
+      touched[numTouched++] = doc;
+    }
+    scores[doc] += score;
+  }
+
+  /**
+   * Number of documents that have received a score since the last clear().
+   */
+  public int size() {
+    return numTouched;
+  }
+
+  /**
+   * The i-th document that received a score, in the order they were first
+   * seen.
+   */
+  public int doc(int i) {
+    return touched[i];
+  }
+
+  /**
+   * The accumulated score of a document.
+   */
+  public double getScore(int doc) {
+    return scores[doc];
+  }
+
+  /**
+   * Resets the scores of the touched documents to zero.
+   */
+  public void clear() {
+    for (int i = 0; i < numTouched; i++) {
+      int doc = touched[i];
+      scores[doc] = 0.0;
+      seen[doc] = false;
+    }
+    numTouched = 0;
+  }
+}
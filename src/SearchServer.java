@@ -0,0 +1,206 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves queries over HTTP with the JDK's built-in server.
+ *
+ *   GET /search?q=new+york&k=10
+ *
+ * returns the k best matching documents as JSON:
+ *
+ *   {"query":"new york","k":10,"total":2,"hits":[{"doc":4,"title":"...","score":0.53},...]}
+ *
+ * Every request searches the searcher that is current when it arrives, so
+ * documents added or deleted meanwhile show up in the next request.  The
+ * time spent answering, in milliseconds, is reported in a Server-Timing
+ * header.  Requests run on a fixed pool of -Dirsystem.serverThreads threads,
+ * twice the number of processors by default, or on a thread per request if
+ * the property is "virtual" and the JVM has virtual threads.
+ */
+public class SearchServer implements HttpHandler {
+  static final String CONTEXT = "/search";
+  static final int DEFAULT_K = 10;
+  static final int MAX_K = 1000;
+
+  final IRSystem irSys;
+  final HttpServer server;
+  final ExecutorService executor;
+
+  public SearchServer(IRSystem irSys, int port) throws IOException {
+    this(irSys, port, newExecutor(System.getProperty("irsystem.serverThreads")));
+  }
+
+  public SearchServer(IRSystem irSys, int port, ExecutorService executor) throws IOException {
+    this.irSys = irSys;
+    this.executor = executor;
+    this.server = HttpServer.create(new InetSocketAddress(port), 0);
+    server.createContext(CONTEXT, this);
+    server.setExecutor(executor);
+  }
+
+  /**
+   * A fixed pool of the given number of threads, or a thread per task if
+   * setting is "virtual".  Virtual threads are looked up at run time, so the
+   * server still builds for older JVMs.
+   */
+  static ExecutorService newExecutor(String setting) {
+    if (setting == null)
+      return Executors.newFixedThreadPool(2 * Runtime.getRuntime().availableProcessors());
+    if (setting.equalsIgnoreCase("virtual")) {
+      try {
+        return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      } catch (Exception e) {
+        throw new IllegalArgumentException("This JVM has no virtual threads", e);
+      }
+    }
+    return Executors.newFixedThreadPool(Integer.parseInt(setting));
+  }
+
+  public void start() {
+    server.start();
+  }
+
+  /**
+   * Stops accepting requests, waits at most delay seconds for the running
+   * ones and shuts the executor down.
+   */
+  public void stop(int delay) {
+    server.stop(delay);
+    executor.shutdown();
+  }
+
+  public int port() {
+    return server.getAddress().getPort();
+  }
+
+  public void handle(HttpExchange exchange) throws IOException {
+    long start = System.nanoTime();
+    try {
+      if (!exchange.getRequestURI().getPath().equals(CONTEXT)) {
+        send(exchange, 404, error("Not found"), start);
+        return;
+      }
+      if (!exchange.getRequestMethod().equals("GET")) {
+        exchange.getResponseHeaders().set("Allow", "GET");
+        send(exchange, 405, error("Only GET is supported"), start);
+        return;
+      }
+      Map<String, String> params = parseParams(exchange.getRequestURI().getRawQuery());
+      String query = params.get("q");
+      if (query == null) {
+        send(exchange, 400, error("Missing parameter q"), start);
+        return;
+      }
+      int k = DEFAULT_K;
+      if (params.containsKey("k")) {
+        try {
+          k = Integer.parseInt(params.get("k"));
+        } catch (NumberFormatException e) {
+          k = 0;
+        }
+        if (k < 1 || k > MAX_K) {
+          send(exchange, 400, error("k must be between 1 and " + MAX_K), start);
+          return;
+        }
+      }
+
+      Searcher searcher = irSys.searcher();
+      TopDocs results = searcher.queryRank(query, k);
+      StringBuilder json = new StringBuilder();
+      json.append("{\"query\":");
+      appendString(json, query);
+      json.append(",\"k\":").append(k);
+      json.append(",\"total\":").append(results.size());
+      json.append(",\"hits\":[");
+      for (int i = 0; i < results.size(); i++) {
+        if (i > 0)
+          json.append(',');
+        json.append("{\"doc\":").append(results.doc(i));
+        json.append(",\"title\":");
+        appendString(json, searcher.getTitle(results.doc(i)));
+        json.append(",\"score\":").append(results.score(i));
+        json.append('}');
+      }
+      json.append("]}");
+      send(exchange, 200, json.toString(), start);
+    } catch (RuntimeException e) {
+      send(exchange, 500, error(String.valueOf(e)), start);
+    } finally {
+      exchange.close();
+    }
+  }
+
+  static void send(HttpExchange exchange, int status, String json, long start) throws IOException {
+    byte[] body = json.getBytes("UTF-8");
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+    double millis = (System.nanoTime() - start) / 1e6;
+    exchange.getResponseHeaders().set("Server-Timing", "search;dur=" + String.format("%.3f", millis));
+    exchange.sendResponseHeaders(status, body.length);
+    OutputStream output = exchange.getResponseBody();
+    output.write(body);
+    output.close();
+  }
+
+  static String error(String message) {
+    StringBuilder json = new StringBuilder("{\"error\":");
+    appendString(json, message);
+    return json.append('}').toString();
+  }
+
+  /**
+   * Decodes the parameters of a URL query string.  Of repeated parameters
+   * the first one wins.
+   */
+  static Map<String, String> parseParams(String rawQuery) throws UnsupportedEncodingException {
+    Map<String, String> params = new HashMap<String, String>();
+    if (rawQuery == null)
+      return params;
+    for (String pair : rawQuery.split("&")) {
+      if (pair.isEmpty())
+        continue;
+      int eq = pair.indexOf('=');
+      String name = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), "UTF-8");
+      String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+      if (!params.containsKey(name))
+        params.put(name, value);
+    }
+    return params;
+  }
+
+  /**
+   * Appends a string as a JSON string literal, or null.
+   */
+  static void appendString(StringBuilder json, String s) {
+    if (s == null) {
+      json.append("null");
+      return;
+    }
+    json.append('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+        case '"': json.append("\\\""); break;
+        case '\\': json.append("\\\\"); break;
+        case '\n': json.append("\\n"); break;
+        case '\r': json.append("\\r"); break;
+        case '\t': json.append("\\t"); break;
+        default:
+          if (c < 0x20)
+            json.append(String.format("\\u%04x", (int) c));
+          else
+            json.append(c);
+      }
+    }
+    json.append('"');
+  }
+}
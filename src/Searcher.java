@@ -0,0 +1,708 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A point-in-time view of the index that any number of threads can query at
+ * the same time.  It holds the segments that were live when it was taken.
+ * Segments never change, and later additions, deletions and merges publish
+ * new ones instead, so a searcher always sees one consistent index no matter
+ * what writers do meanwhile.
+ *
+ * A query needs some scratch state: a stemmer, a tokenizer and a score
+ * accumulator as large as the corpus.  It is borrowed from a pool shared by
+ * the searchers of an IRSystem for the duration of one query, rather than
+ * kept in a field (which would not be thread-safe) or in a ThreadLocal
+ * (which would allocate an accumulator for every thread that ever queries).
+ * The pool holds no more scratch objects than there were queries running at
+ * once, which suits a few pool threads and many short-lived threads alike.
+ */
+public class Searcher {
+  static final List<List<String>> NO_PHRASES = Collections.emptyList();
+
+  final List<Segment> segments;
+  final int maxDoc;
+  final int numLiveDocs;
+  final StemCache stemCache;
+  final ResultCache resultCache;
+  final Queue<Scratch> scratchPool;
+
+  /**
+   * The mutable state of one query.
+   */
+  static class Scratch {
+    final PorterStemmer stemmer = new PorterStemmer();
+    final Tokenizer tokenizer = new Tokenizer();
+    ScoreAccumulator accumulator;
+  }
+
+  /**
+   * A query string split into its stemmed words and its phrases.
+   */
+  public static class Query {
+    final ArrayList<String> words;  // all of them, those of the phrases included
+    final List<List<String>> phrases;
+
+    Query(ArrayList<String> words, List<List<String>> phrases) {
+      this.words = words;
+      this.phrases = phrases;
+    }
+
+    public String toString() {
+      return words + (phrases.isEmpty() ? "" : " phrases " + phrases);
+    }
+  }
+
+  /**
+   * Creates a searcher over the given segments, which must be in document
+   * order.  stemCache and resultCache may be null.
+   */
+  public Searcher(List<Segment> segments, StemCache stemCache, ResultCache resultCache,
+                  Queue<Scratch> scratchPool) {
+    this.segments = Collections.unmodifiableList(new ArrayList<Segment>(segments));
+    this.maxDoc = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).endDocId();
+    this.numLiveDocs = numLiveDocs(segments);
+    this.stemCache = stemCache;
+    this.resultCache = resultCache;
+    this.scratchPool = scratchPool;
+  }
+
+  public Searcher(List<Segment> segments) {
+    this(segments, null, null, new ConcurrentLinkedQueue<Scratch>());
+  }
+
+  Scratch borrow() {
+    Scratch scratch = scratchPool.poll();
+    return scratch != null ? scratch : new Scratch();
+  }
+
+  void release(Scratch scratch) {
+    scratchPool.offer(scratch);
+  }
+
+  public List<Segment> segments() {
+    return segments;
+  }
+
+  /**
+   * One past the largest document index in the searcher.
+   */
+  public int maxDoc() {
+    return maxDoc;
+  }
+
+  public int numLiveDocs() {
+    return numLiveDocs;
+  }
+
+  /**
+   * The segment holding a document index, or null.
+   */
+  static Segment segmentOf(List<Segment> segments, int doc) {
+    for (Segment s : segments) {
+      if (s.localDoc(doc) >= 0)
+        return s;
+    }
+    return null;
+  }
+
+  public Segment segmentOf(int doc) {
+    return segmentOf(segments, doc);
+  }
+
+  /**
+   * The title of a document, or null if a merge has dropped it.
+   */
+  public String getTitle(int doc) {
+    Segment s = segmentOf(doc);
+    return s == null ? null : s.titles.get(s.localDoc(doc));
+  }
+
+  static int numLiveDocs(List<Segment> segments) {
+    int n = 0;
+    for (Segment s : segments)
+      n += s.numLiveDocs();
+    return n;
+  }
+
+  static int docFreq(List<Segment> segments, String term) {
+    int df = 0;
+    for (Segment s : segments)
+      df += s.docFreq(term);
+    return df;
+  }
+
+  /**
+   * Number of live documents a stemmed term occurs in, over all segments.
+   */
+  public int docFreq(String term) {
+    return docFreq(segments, term);
+  }
+
+  /**
+   * The inverse document frequency weight of a stemmed term over the live
+   * documents, 0 if it occurs in none.
+   */
+  public double getIDF(String term) {
+    int df = docFreq(term);
+    if (df == 0)
+      return 0.0;
+    return Math.log10((double) numLiveDocs / (double) df);
+  }
+
+  static String stem(char[] w, int len, PorterStemmer stemmer, StemCache stemCache) {
+    if (stemCache != null)
+      return stemCache.stem(w, 0, len, stemmer);
+    stemmer.stem(w, 0, len);
+    return stemmer.toString();
+  }
+
+  String stem(char[] w, int len, PorterStemmer stemmer) {
+    return stem(w, len, stemmer, stemCache);
+  }
+
+  /**
+   * Stems one word.
+   */
+  public String stem(String word) {
+    Scratch scratch = borrow();
+    try {
+      if (stemCache != null)
+        return stemCache.stem(word, scratch.stemmer);
+      return scratch.stemmer.stem(word);
+    } finally {
+      release(scratch);
+    }
+  }
+
+  /**
+   * Returns the lowercase, alphanumeric, stemmed words of a query string,
+   * tokenized exactly like the documents.
+   */
+  public ArrayList<String> processQuery(String queryString) {
+    Scratch scratch = borrow();
+    try {
+      return processText(queryString, scratch, stemCache);
+    } finally {
+      release(scratch);
+    }
+  }
+
+  /**
+   * Tokenizes and stems text with the given scratch state, which must not
+   * be in use by another thread.  Needs no searcher, so that adding a
+   * document does not have to build one.
+   */
+  static ArrayList<String> processText(String text, Scratch scratch, StemCache stemCache) {
+    ArrayList<String> words = new ArrayList<String>();
+    Tokenizer tokenizer = scratch.tokenizer;
+    tokenizer.reset(text);
+    while (tokenizer.next()) {
+      words.add(stem(tokenizer.buffer(), tokenizer.length(), scratch.stemmer, stemCache));
+    }
+    return words;
+  }
+
+  /**
+   * Splits a query string into its words, tokenized and stemmed like the
+   * documents, and its phrases.  The text between a pair of double quotes
+   * is a phrase, whose words must occur next to each other and in order; a
+   * quote left open runs to the end of the query.  The words of a query
+   * without quotes are those processQuery() returns.
+   */
+  public Query parseQuery(String queryString) {
+    Scratch scratch = borrow();
+    try {
+      ArrayList<String> words = new ArrayList<String>();
+      List<List<String>> phrases = new ArrayList<List<String>>();
+      Tokenizer tokenizer = scratch.tokenizer;
+      boolean quoted = false;
+      int start = 0;
+      for (int end = 0; end <= queryString.length(); end++) {
+        if (end < queryString.length() && queryString.charAt(end) != '"')
+          continue;
+        int first = words.size();
+        tokenizer.reset(queryString.subSequence(start, end));
+        while (tokenizer.next()) {
+          words.add(stem(tokenizer.buffer(), tokenizer.length(), scratch.stemmer));
+        }
+        if (quoted && words.size() > first)
+          phrases.add(new ArrayList<String>(words.subList(first, words.size())));
+        quoted = !quoted;
+        start = end + 1;
+      }
+      return new Query(words, phrases);
+    } finally {
+      release(scratch);
+    }
+  }
+
+  /**
+   * The tf-idf weight of a stemmed word in a document, 0 if the document is
+   * deleted or does not contain it.
+   */
+  public double getTFIDF(String word, int doc) {
+    Segment s = segmentOf(doc);
+    if (s == null || !s.isLive(s.localDoc(doc)))
+      return 0.0;
+    int term = s.dictionary.lookup(word);
+    if (term < 0)
+      return 0.0;
+    int local = s.localDoc(doc);
+    PostingsIterator it = s.postings.iterator(term);
+    if (it.advance(local) != local)
+      return 0.0;
+    return s.impacts.getWeight(term, it.ordinal()) * getIDF(word);
+  }
+
+  /**
+   * The live documents a stemmed word occurs in, in increasing order.
+   */
+  public int[] getPosting(String word) {
+    int[] docs = new int[docFreq(word)];
+    int n = 0;
+    for (Segment s : segments) {
+      int term = s.dictionary.lookup(word);
+      if (term < 0)
+        continue;
+      PostingsIterator it = s.postings.iterator(term);
+      while (it.next() != PostingsIterator.NO_MORE_DOCS) {
+        if (s.isLive(it.doc()))
+          docs[n++] = s.docId(it.doc());
+      }
+    }
+    return docs;
+  }
+
+  /**
+   * Returns the documents that contain all the stemmed words of a query, in
+   * increasing order.
+   */
+  public ArrayList<Integer> booleanRetrieve(List<String> query) {
+    return booleanRetrieve(query, NO_PHRASES);
+  }
+
+  /**
+   * Returns the documents that contain all the stemmed words of a query and
+   * all its phrases, given as their stemmed words in order, in increasing
+   * order.
+   */
+  public ArrayList<Integer> booleanRetrieve(List<String> query, List<List<String>> phrases) {
+    // segments hold increasing ranges of documents, so appending the
+    // matches of each segment in turn keeps the result sorted
+    ArrayList<Integer> docs = new ArrayList<Integer>();
+    for (Segment s : segments) {
+      int[] terms = lookup(s, query);
+      int[][] phraseTerms = lookupPhrases(s, phrases);
+      if (terms == null || phraseTerms == null)
+        continue;
+      ConjunctionIterator matches = new ConjunctionIterator(s, terms, phraseTerms);
+      while (matches.next() != PostingsIterator.NO_MORE_DOCS)
+        docs.add(s.docId(matches.doc()));
+    }
+    return docs;
+  }
+
+  /**
+   * The term ids of stemmed words in segment s, or null if one of them is
+   * not in it.
+   */
+  static int[] lookup(Segment s, List<String> words) {
+    int[] terms = new int[words.size()];
+    for (int i = 0; i < terms.length; i++) {
+      terms[i] = s.dictionary.lookup(words.get(i));
+      if (terms[i] < 0)
+        return null;
+    }
+    return terms;
+  }
+
+  /**
+   * The term ids of the words of each phrase in segment s, or null if one of
+   * them is not in it.
+   */
+  static int[][] lookupPhrases(Segment s, List<List<String>> phrases) {
+    int[][] terms = new int[phrases.size()][];
+    for (int p = 0; p < terms.length; p++) {
+      terms[p] = lookup(s, phrases.get(p));
+      if (terms[p] == null)
+        return null;
+    }
+    return terms;
+  }
+
+  /**
+   * Returns at most k of the live documents with a positive cosine
+   * similarity to a stemmed query, best first.
+   */
+  public TopDocs rankRetrieve(List<String> query, int k) {
+    return rankRetrieve(query, NO_PHRASES, k);
+  }
+
+  /**
+   * Returns at most k of the live documents that contain all the phrases,
+   * given as their stemmed words in order, and have a positive cosine
+   * similarity to a stemmed query, best first.  The words of the phrases
+   * only count towards the score if they are in the query.
+   */
+  public TopDocs rankRetrieve(List<String> query, List<List<String>> phrases, int k) {
+    // tf of the query terms: equal terms are adjacent once sorted
+    String[] sorted = query.toArray(new String[query.size()]);
+    Arrays.sort(sorted);
+    String[] terms = new String[sorted.length];
+    double[] weights = new double[sorted.length];
+    double[] idfs = new double[sorted.length];
+    int n = 0;
+    for (int i = 0; i < sorted.length; ) {
+      int j = i + 1;
+      while (j < sorted.length && sorted[j].equals(sorted[i]))
+        j++;
+      terms[n] = sorted[i];
+      weights[n] = Math.log10(j - i) + 1.0;
+      idfs[n] = getIDF(sorted[i]);
+      n++;
+      i = j;
+    }
+    terms = Arrays.copyOf(terms, n);
+
+    TopDocs top = new TopDocs(k);
+    for (Segment s : segments) {
+      if (phrases.isEmpty())
+        top.postingsDecoded += maxScore(s, terms, weights, idfs, top);
+      else
+        top.postingsDecoded += scoreMatches(s, terms, weights, idfs, phrases, top);
+    }
+    return top;
+  }
+
+  /**
+   * Adds to top the documents of segment s that contain all the phrases,
+   * scored on all the query terms.  Only these documents can be ranked, so
+   * the postings of the terms are advance()d from one to the next instead
+   * of being read in full, and the query costs little more than the boolean
+   * query of its phrases.  Scores are summed in term order like maxScore()
+   * does.  Returns the number of postings decoded.
+   */
+  static long scoreMatches(Segment s, String[] terms, double[] weights, double[] idfs,
+                           List<List<String>> phrases, TopDocs top) {
+    int[][] phraseTerms = lookupPhrases(s, phrases);
+    if (phraseTerms == null)
+      return 0;
+    ConjunctionIterator matches = new ConjunctionIterator(s, new int[0], phraseTerms);
+    int[] ids = new int[terms.length];
+    PostingsIterator[] its = new PostingsIterator[terms.length];
+    for (int t = 0; t < terms.length; t++) {
+      ids[t] = s.dictionary.lookup(terms[t]);
+      if (ids[t] >= 0)
+        its[t] = s.postings.iterator(ids[t]);
+    }
+
+    while (matches.next() != PostingsIterator.NO_MORE_DOCS) {
+      int doc = matches.doc();
+      double sum = 0.0;
+      for (int t = 0; t < terms.length; t++) {
+        if (its[t] != null && its[t].advance(doc) == doc)
+          sum += weights[t] * (s.impacts.getWeight(ids[t], its[t].ordinal()) * idfs[t]);
+      }
+      double score = sum / s.norms.get(doc);
+      if (score > 0)
+        top.add(s.docId(doc), score);
+    }
+
+    long decoded = matches.decoded();
+    for (PostingsIterator it : its) {
+      if (it != null)
+        decoded += it.decoded();
+    }
+    return decoded;
+  }
+
+  // relative margin on score bounds, which are rounded differently from the
+  // scores they bound
+  static final double BOUND_SLACK = 1e-9;
+
+  /**
+   * True if a document whose score is at most bound could still enter a top
+   * k whose lowest score is minScore.  Ties can, as they may win on document
+   * index.
+   */
+  static boolean mayCompete(double bound, double minScore) {
+    return !(bound * (1 + BOUND_SLACK) < minScore);
+  }
+
+  /**
+   * Adds to top the documents of segment s that score high enough, with the
+   * MaxScore algorithm.  No document can score more for a term than the
+   * query weight times idf times the term's maximum impact.  Terms are
+   * ordered by that bound, and the terms with the lowest bounds, whose sum
+   * is below the lowest score in top, are non-essential: a document that
+   * only has those terms cannot enter top.  Candidates are the documents of
+   * the essential terms, visited in increasing order, and the postings of
+   * the non-essential terms are only advance()d to candidates that can still
+   * enter top once their essential terms are scored.  As top fills up, more
+   * terms become non-essential and more postings are skipped.
+   *
+   * Block maxima tighten the bounds around each candidate.  Up to the first
+   * block end of any term, a document scores at most the sum of the maxima
+   * of the terms' current blocks.  If that cannot enter top, the essential
+   * postings jump past that block end, skipping whole blocks; otherwise the
+   * block maxima also bound the candidate's non-essential terms.
+   *
+   * Scores are summed in term order, exactly as rankRetrieveExhaustive()
+   * does, so both give the same documents with the same scores.  Returns
+   * the number of postings decoded.
+   */
+  static long maxScore(Segment s, String[] terms, double[] weights, double[] idfs, TopDocs top) {
+    int n = 0;
+    int[] canon = new int[terms.length];  // index in terms
+    int[] ids = new int[terms.length];
+    PostingsIterator[] its = new PostingsIterator[terms.length];
+    double[] factors = new double[terms.length];  // query weight times idf
+    double[] bounds = new double[terms.length];
+    int[] blocks = new int[terms.length];  // current block of each term
+    int[] blockEnds = new int[terms.length];
+    for (int t = 0; t < terms.length; t++) {
+      int id = s.dictionary.lookup(terms[t]);
+      if (id < 0)
+        continue;
+      canon[n] = t;
+      ids[n] = id;
+      its[n] = s.postings.iterator(id);
+      // a term in every document adds 0 to any score
+      factors[n] = idfs[t] == 0 ? 0 : weights[t] * idfs[t];
+      bounds[n] = factors[n] == 0 ? 0 : factors[n] * s.impacts.maxImpact(id);
+      blocks[n] = s.impacts.firstBlock(id);
+      blockEnds[n] = s.impacts.firstBlock(id + 1);
+      n++;
+    }
+    if (n == 0)
+      return 0;
+
+    // order[0..n-1]: the terms by increasing bound; prefix[i]: the sum of
+    // the bounds of order[0..i-1]
+    int[] order = new int[n];
+    for (int i = 0; i < n; i++) {
+      int j = i;
+      for (; j > 0 && bounds[order[j - 1]] > bounds[i]; j--)
+        order[j] = order[j - 1];
+      order[j] = i;
+    }
+    double[] prefix = new double[n + 1];
+    for (int i = 0; i < n; i++)
+      prefix[i + 1] = prefix[i] + bounds[order[i]];
+
+    int firstEssential = firstEssential(prefix, top.minScore(), 0);
+    for (int i = firstEssential; i < n; i++)
+      its[order[i]].next();
+
+    double[] blockBounds = new double[n];
+    double[] blockPrefix = new double[n + 1];  // like prefix, over block bounds
+    int upTo = -1;  // the block bounds hold up to this document
+    double[] contributions = new double[terms.length];
+    for (;;) {
+      int doc = PostingsIterator.NO_MORE_DOCS;
+      for (int i = firstEssential; i < n; i++)
+        doc = Math.min(doc, its[order[i]].doc());
+      if (doc == PostingsIterator.NO_MORE_DOCS)
+        break;
+
+      // bound the documents from doc up to the first block end, which only
+      // changes once doc passes it
+      if (doc > upTo) {
+        upTo = PostingsIterator.NO_MORE_DOCS;
+        for (int i = 0; i < n; i++) {
+          int j = order[i];
+          blockBounds[j] = 0;
+          if (factors[j] == 0)
+            continue;
+          while (blocks[j] < blockEnds[j] && s.impacts.blockLastDoc(blocks[j]) < doc)
+            blocks[j]++;
+          if (blocks[j] < blockEnds[j]) {
+            blockBounds[j] = factors[j] * s.impacts.blockMaxImpact(blocks[j]);
+            upTo = Math.min(upTo, s.impacts.blockLastDoc(blocks[j]));
+          }
+        }
+        for (int i = 0; i < n; i++)
+          blockPrefix[i + 1] = blockPrefix[i] + blockBounds[order[i]];
+      }
+      double minScore = top.minScore();
+      if (!mayCompete(blockPrefix[n], minScore)) {
+        int target = upTo == PostingsIterator.NO_MORE_DOCS ? upTo : upTo + 1;
+        for (int i = firstEssential; i < n; i++)
+          its[order[i]].advance(target);
+        continue;
+      }
+
+      // bound the candidate by the blocks of the terms it may have
+      double bound = blockPrefix[firstEssential];
+      for (int i = firstEssential; i < n; i++) {
+        if (its[order[i]].doc() == doc)
+          bound += blockBounds[order[i]];
+      }
+      boolean live = s.isLive(doc);
+      if (!live || !mayCompete(bound, minScore)) {
+        for (int i = firstEssential; i < n; i++) {
+          if (its[order[i]].doc() == doc)
+            its[order[i]].next();
+        }
+        continue;
+      }
+
+      double partial = 0;
+      for (int i = firstEssential; i < n; i++) {
+        int j = order[i];
+        PostingsIterator it = its[j];
+        if (it.doc() != doc)
+          continue;
+        double c = weights[canon[j]] * (s.impacts.getWeight(ids[j], it.ordinal()) * idfs[canon[j]]);
+        contributions[canon[j]] = c;
+        partial += c;
+        it.next();
+      }
+
+      double norm = s.norms.get(doc);
+      boolean competitive = true;
+      for (int i = firstEssential - 1; i >= 0; i--) {
+        if (!mayCompete(partial / norm + blockPrefix[i + 1], minScore)) {
+          competitive = false;
+          break;
+        }
+        int j = order[i];
+        PostingsIterator it = its[j];
+        if (it.advance(doc) == doc) {
+          double c = weights[canon[j]] * (s.impacts.getWeight(ids[j], it.ordinal()) * idfs[canon[j]]);
+          contributions[canon[j]] = c;
+          partial += c;
+        }
+      }
+
+      if (competitive) {
+        double sum = 0.0;
+        for (int t = 0; t < terms.length; t++)
+          sum += contributions[t];
+        double score = sum / norm;
+        if (score > 0 && top.add(s.docId(doc), score))
+          firstEssential = firstEssential(prefix, top.minScore(), firstEssential);
+      }
+      Arrays.fill(contributions, 0.0);
+    }
+
+    long decoded = 0;
+    for (int i = 0; i < n; i++)
+      decoded += its[i].decoded();
+    return decoded;
+  }
+
+  /**
+   * The first term in bound order that is essential, given the lowest score
+   * in the top k: the terms before it cannot make a document compete.
+   */
+  static int firstEssential(double[] prefix, double minScore, int from) {
+    int n = prefix.length - 1;
+    while (from < n && !mayCompete(prefix[from + 1], minScore))
+      from++;
+    return from;
+  }
+
+  /**
+   * Same as rankRetrieve(), but scores every posting of every query term
+   * term by term.  Kept as the reference rankRetrieve() must agree with.
+   */
+  public TopDocs rankRetrieveExhaustive(List<String> query, int k) {
+    Scratch scratch = borrow();
+    try {
+      if (scratch.accumulator == null || scratch.accumulator.scores.length < maxDoc)
+        scratch.accumulator = new ScoreAccumulator(maxDoc);
+      ScoreAccumulator accumulator = scratch.accumulator;
+      accumulator.clear();
+
+      // tf of the query terms: equal terms are adjacent once sorted
+      String[] terms = query.toArray(new String[query.size()]);
+      Arrays.sort(terms);
+      long decoded = 0;
+      for (int i = 0; i < terms.length; ) {
+        int j = i + 1;
+        while (j < terms.length && terms[j].equals(terms[i]))
+          j++;
+        String term = terms[i];
+        double weight = Math.log10(j - i) + 1.0;
+        double idf = getIDF(term);
+        i = j;
+
+        for (Segment s : segments) {
+          int id = s.dictionary.lookup(term);
+          if (id < 0)
+            continue;
+          PostingsIterator it = s.postings.iterator(id);
+          while (it.next() != PostingsIterator.NO_MORE_DOCS) {
+            if (!s.isLive(it.doc()))
+              continue;
+            double wtd = s.impacts.getWeight(id, it.ordinal()) * idf;
+            accumulator.add(s.docId(it.doc()), weight * wtd);
+          }
+          decoded += it.decoded();
+        }
+      }
+
+      // Only the documents that share a term with the query are ranked.
+      TopDocs top = new TopDocs(k);
+      top.postingsDecoded = decoded;
+      for (int i = 0; i < accumulator.size(); i++) {
+        int d = accumulator.doc(i);
+        Segment s = segmentOf(d);
+        double score = accumulator.getScore(d) / s.norms.get(s.localDoc(d));
+        if (score > 0)
+          top.add(d, score);
+      }
+      accumulator.clear();
+      return top;
+    } finally {
+      release(scratch);
+    }
+  }
+
+  /**
+   * Parses a query string and returns the documents that contain all of its
+   * words and phrases, in increasing order.  The result comes from the
+   * result cache if an equivalent query has been answered over the same
+   * segments.
+   */
+  public ArrayList<Integer> queryRetrieve(String queryString) {
+    Query query = parseQuery(queryString);
+    if (resultCache == null)
+      return booleanRetrieve(query.words, query.phrases);
+    ResultCache.Key key = ResultCache.Key.matching(query.words, query.phrases);
+    @SuppressWarnings("unchecked")
+    ArrayList<Integer> docs = (ArrayList<Integer>) resultCache.get(segments, key);
+    if (docs == null) {
+      docs = booleanRetrieve(query.words, query.phrases);
+      resultCache.put(segments, key, docs);
+    }
+    // callers may modify the list they get
+    return new ArrayList<Integer>(docs);
+  }
+
+  /**
+   * Parses a query string and returns at most k of the best matching
+   * documents that contain all of its phrases, best first.  The result
+   * comes from the result cache if an equivalent query has been answered
+   * over the same segments.
+   */
+  public TopDocs queryRank(String queryString, int k) {
+    Query query = parseQuery(queryString);
+    if (resultCache == null)
+      return rankRetrieve(query.words, query.phrases, k);
+    ResultCache.Key key = ResultCache.Key.ranked(query.words, query.phrases, k);
+    TopDocs top = (TopDocs) resultCache.get(segments, key);
+    if (top == null) {
+      top = rankRetrieve(query.words, query.phrases, k);
+      // sorted now, so that threads sharing it only ever read it
+      top.sort();
+      resultCache.put(segments, key, top);
+    }
+    return top;
+  }
+}
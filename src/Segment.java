@@ -0,0 +1,171 @@
+import java.io.File;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A searchable part of the index: a term dictionary, postings, impacts, norms
+ * and titles over a range of documents.  Documents are numbered from 0 within
+ * the segment.  Their document index in IRSystem is docBase plus that number,
+ * or, once a merge has dropped deleted documents, is looked up in docIds.
+ * Either way segment order is document order.
+ *
+ * A segment never changes.  Deleting a document returns a copy that shares
+ * the postings and differs only in its Deletions, the deleted documents and
+ * the count of deleted documents per term, so docFreq() only counts live
+ * documents.  A
+ * query keeps using the copy it started with.  Query code must skip postings
+ * whose document is not isLive().
+ */
+public class Segment {
+  final String name;
+  final TermDictionary dictionary;
+  final Postings postings;
+  final ImpactStore impacts;
+  final DoubleBuffer norms;
+  final List<String> titles;
+  final int docBase;
+  final int numDocs;
+  final IntBuffer docIds;  // document index of each document, null if docBase + number
+  final File file;  // where the segment is stored, null if only in memory
+
+  final Deletions deletions;  // null while no document is deleted
+  final int numDeleted;
+
+  Segment(String name, TermDictionary dictionary, Postings postings, ImpactStore impacts,
+          DoubleBuffer norms, List<String> titles, int docBase, int numDocs,
+          IntBuffer docIds, File file) {
+    this(name, dictionary, postings, impacts, norms, titles, docBase, numDocs, docIds, file,
+         null);
+  }
+
+  Segment(String name, TermDictionary dictionary, Postings postings, ImpactStore impacts,
+          DoubleBuffer norms, List<String> titles, int docBase, int numDocs,
+          IntBuffer docIds, File file, Deletions deletions) {
+    this.name = name;
+    this.dictionary = dictionary;
+    this.postings = postings;
+    this.impacts = impacts;
+    this.norms = norms;
+    this.titles = titles;
+    this.docBase = docBase;
+    this.numDocs = numDocs;
+    this.docIds = docIds;
+    this.file = file;
+    this.deletions = deletions;
+    this.numDeleted = deletions == null ? 0 : deletions.numDeleted();
+  }
+
+  public String name() {
+    return name;
+  }
+
+  /**
+   * Number of documents in the segment, deleted ones included.
+   */
+  public int numDocs() {
+    return numDocs;
+  }
+
+  /**
+   * Number of documents that are not deleted.
+   */
+  public int numLiveDocs() {
+    return numDocs - numDeleted;
+  }
+
+  /**
+   * The document index of a document numbered within the segment.
+   */
+  public int docId(int doc) {
+    return docIds == null ? docBase + doc : docIds.get(doc);
+  }
+
+  /**
+   * The number within the segment of a document index, or -1 if the segment
+   * does not hold it.
+   */
+  public int localDoc(int docId) {
+    if (docIds == null)
+      return docId >= docBase && docId < docBase + numDocs ? docId - docBase : -1;
+    int lo = 0;
+    int hi = numDocs - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int id = docIds.get(mid);
+      if (id < docId)
+        lo = mid + 1;
+      else if (id > docId)
+        hi = mid - 1;
+      else
+        return mid;
+    }
+    return -1;
+  }
+
+  /**
+   * One past the largest document index the segment can hold.
+   */
+  public int endDocId() {
+    return numDocs == 0 ? docBase : docId(numDocs - 1) + 1;
+  }
+
+  /**
+   * True if the document, numbered within the segment, is not deleted.
+   */
+  public boolean isLive(int doc) {
+    return deletions == null || !deletions.isDeleted(doc);
+  }
+
+  /**
+   * Number of live documents the term occurs in, 0 if it is not in the
+   * segment.
+   */
+  public int docFreq(String term) {
+    int id = dictionary.lookup(term);
+    return id < 0 ? 0 : docFreq(id);
+  }
+
+  /**
+   * Number of live documents the term with the given id occurs in.
+   */
+  public int docFreq(int term) {
+    int df = postings.docFreq(term);
+    return deletions == null ? df : df - deletions.docFreq(term);
+  }
+
+  /**
+   * Returns a copy of the segment without the document, numbered within the
+   * segment, or this segment if it is already deleted.  It costs time
+   * proportional to the number of terms of the document.
+   */
+  public Segment withDeletion(int doc) {
+    if (!isLive(doc))
+      return this;
+    Deletions d = deletions == null ? new Deletions(numDocs, postings.size()) : deletions;
+    return withDeletions(d.delete(doc, postings.terms(doc)));
+  }
+
+  /**
+   * Returns a copy of the segment with the given live docs.
+   */
+  public Segment withLiveDocs(BitSet live) {
+    if (live.nextClearBit(0) >= numDocs)
+      return withDeletions(null);
+    return withDeletions(Deletions.of(live, numDocs, postings));
+  }
+
+  /**
+   * Returns a copy of the segment with the given deletions, null for none,
+   * which must be of a segment with the same documents and term ids.
+   */
+  public Segment withDeletions(Deletions deletions) {
+    return new Segment(name, dictionary, postings, impacts, norms, titles, docBase, numDocs,
+                       docIds, file, deletions);
+  }
+
+  public String toString() {
+    return name + "(" + numLiveDocs() + "/" + numDocs + " docs from " + docBase + ")";
+  }
+}
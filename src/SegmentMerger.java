@@ -0,0 +1,99 @@
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Merges adjacent segments into one, leaving out deleted documents.  The
+ * live documents keep their order and their document indices, their titles
+ * and norms are copied, and the postings of every term are re-encoded with
+ * the new document numbers, along with their positions.  Terms left without any live document are
+ * dropped.  The sources are only read, so queries can keep using them while
+ * the merge runs.
+ */
+public class SegmentMerger {
+
+  /**
+   * Returns the merged segment, or null if none of the sources has a live
+   * document.
+   */
+  public static Segment merge(String name, List<Segment> sources) {
+    // new number of every live document, -1 for deleted ones
+    int[][] newDocs = new int[sources.size()][];
+    int[] docIds = new int[16];
+    double[] norms = new double[16];
+    List<String> titles = new ArrayList<String>();
+    int numDocs = 0;
+    List<String> terms = new ArrayList<String>();
+    for (int k = 0; k < sources.size(); k++) {
+      Segment s = sources.get(k);
+      newDocs[k] = new int[s.numDocs()];
+      for (int doc = 0; doc < s.numDocs(); doc++) {
+        if (!s.isLive(doc)) {
+          newDocs[k][doc] = -1;
+          continue;
+        }
+        if (numDocs == docIds.length) {
+          docIds = Arrays.copyOf(docIds, 2 * numDocs);
+          norms = Arrays.copyOf(norms, 2 * numDocs);
+        }
+        docIds[numDocs] = s.docId(doc);
+        norms[numDocs] = s.norms.get(doc);
+        titles.add(s.titles.get(doc));
+        newDocs[k][doc] = numDocs++;
+      }
+      for (int term = 0; term < s.postings.size(); term++) {
+        if (s.docFreq(term) > 0)
+          terms.add(s.dictionary.term(term));
+      }
+    }
+    if (numDocs == 0)
+      return null;
+
+    TermDictionary dictionary = new TermDictionary(terms);
+    Postings.Writer writer = new Postings.Writer();
+    double[] weights = new double[1024];
+    int numWeights = 0;
+    int[] positions = new int[16];
+    for (int id = 0; id < dictionary.size(); id++) {
+      String term = dictionary.term(id);
+      writer.startTerm();
+      for (int k = 0; k < sources.size(); k++) {
+        Segment s = sources.get(k);
+        int sourceId = s.dictionary.lookup(term);
+        if (sourceId < 0)
+          continue;
+        PostingsIterator it = s.postings.iterator(sourceId);
+        while (it.next() != PostingsIterator.NO_MORE_DOCS) {
+          int doc = newDocs[k][it.doc()];
+          if (doc < 0)
+            continue;
+          if (it.freq() > positions.length)
+            positions = new int[Math.max(it.freq(), 2 * positions.length)];
+          for (int i = 0; i < it.freq(); i++)
+            positions[i] = it.nextPosition();
+          writer.add(doc, it.freq(), positions, 0);
+          if (numWeights == weights.length)
+            weights = Arrays.copyOf(weights, 2 * numWeights);
+          weights[numWeights++] = s.impacts.getWeight(sourceId, it.ordinal());
+        }
+      }
+    }
+    Postings postings = writer.finish();
+    // weights were collected term by term in postings order, which is the
+    // layout of an ImpactStore
+    ImpactStore impacts = new ImpactStore(postings);
+    impacts.weights.put(weights, 0, numWeights);
+    impacts.weights.rewind();
+    DoubleBuffer docNorms = DoubleBuffer.wrap(Arrays.copyOf(norms, numDocs));
+    impacts.computeMaxImpacts(postings, docNorms);
+
+    int docBase = docIds[0];
+    IntBuffer ids = null;
+    if (docIds[numDocs - 1] - docBase != numDocs - 1)
+      ids = IntBuffer.wrap(Arrays.copyOf(docIds, numDocs));
+    return new Segment(name, dictionary, postings, impacts, docNorms, titles,
+                       docBase, numDocs, ids, null);
+  }
+}
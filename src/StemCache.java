@@ -0,0 +1,275 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, thread-safe memo of PorterStemmer results.  Word frequencies
+ * follow Zipf's law, so a few thousand surface forms make up most of the
+ * tokens of a corpus, and most calls to the stemmer repeat earlier work.
+ *
+ * The cache is split into segments by the hash of the word, each an LRU
+ * hash table behind its own lock, so threads stemming different words
+ * rarely wait for each other.  When a segment is full its least recently
+ * used word is evicted.  The stemmer itself runs outside the lock, with the
+ * caller's PorterStemmer, as PorterStemmer instances cannot be shared.
+ * Hits, misses and evictions are counted for reporting.
+ */
+public class StemCache {
+  static final int NUM_SEGMENTS = 16;
+
+  final Segment[] segments;
+  final int maxSize;
+  final AtomicLong hits = new AtomicLong();
+  final AtomicLong misses = new AtomicLong();
+  final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * A cached word and its stem, in the hash chain of its bucket and in the
+   * segment's list from least to most recently used.
+   */
+  static class Node {
+    final String word;
+    final int hash;
+    String stem;
+    Node next;
+    Node before;
+    Node after;
+
+    Node(String word, int hash, String stem) {
+      this.word = word;
+      this.hash = hash;
+      this.stem = stem;
+    }
+
+    boolean matches(char[] w, int off, int len) {
+      if (word.length() != len)
+        return false;
+      for (int i = 0; i < len; i++) {
+        if (word.charAt(i) != w[off + i])
+          return false;
+      }
+      return true;
+    }
+  }
+
+  /**
+   * One LRU hash table of the cache.  Words are hashed like String.hashCode()
+   * so that they can be looked up from a char slice without building a
+   * String.  Every access must hold the segment's lock.
+   */
+  class Segment {
+    final int capacity;
+    final Node[] table;
+    final Node lru = new Node(null, 0, null);  // sentinel: lru.after is the eldest
+    int size;
+
+    Segment(int capacity) {
+      this.capacity = capacity;
+      int buckets = 16;
+      while (buckets < 2 * capacity)
+        buckets <<= 1;
+      table = new Node[buckets];
+      lru.before = lru;
+      lru.after = lru;
+    }
+
+    /**
+     * The stem of the word, given as a String or, if word is null, as the
+     * slice w[off] up to w[off+len-1], or null if it is not cached.
+     */
+    String get(int hash, String word, char[] w, int off, int len) {
+      for (Node n = table[hash & (table.length - 1)]; n != null; n = n.next) {
+        if (n.hash == hash && (word != null ? word.equals(n.word) : n.matches(w, off, len))) {
+          unlink(n);
+          append(n);
+          return n.stem;
+        }
+      }
+      return null;
+    }
+
+    void put(String word, int hash, String stem) {
+      int bucket = hash & (table.length - 1);
+      for (Node n = table[bucket]; n != null; n = n.next) {
+        if (n.hash == hash && word.equals(n.word)) {
+          // stemmed by two threads at once
+          n.stem = stem;
+          return;
+        }
+      }
+      Node node = new Node(word, hash, stem);
+      node.next = table[bucket];
+      table[bucket] = node;
+      append(node);
+      if (++size > capacity) {
+        remove(lru.after);
+        evictions.incrementAndGet();
+      }
+    }
+
+    void remove(Node node) {
+      unlink(node);
+      int bucket = node.hash & (table.length - 1);
+      if (table[bucket] == node) {
+        table[bucket] = node.next;
+      } else {
+        Node n = table[bucket];
+        while (n.next != node)
+          n = n.next;
+        n.next = node.next;
+      }
+      size--;
+    }
+
+    void unlink(Node node) {
+      node.before.after = node.after;
+      node.after.before = node.before;
+    }
+
+    void append(Node node) {
+      node.before = lru.before;
+      node.after = lru;
+      lru.before.after = node;
+      lru.before = node;
+    }
+
+    void clear() {
+      Arrays.fill(table, null);
+      lru.before = lru;
+      lru.after = lru;
+      size = 0;
+    }
+  }
+
+  /**
+   * Creates a cache holding at most (about) maxSize words.
+   */
+  public StemCache(int maxSize) {
+    if (maxSize <= 0)
+      throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+    this.maxSize = maxSize;
+    int numSegments = maxSize < NUM_SEGMENTS ? 1 : NUM_SEGMENTS;
+    segments = new Segment[numSegments];
+    for (int i = 0; i < numSegments; i++) {
+      segments[i] = new Segment((maxSize + numSegments - 1) / numSegments);
+    }
+  }
+
+  Segment segmentFor(int hash) {
+    int h = hash ^ (hash >>> 16);
+    return segments[(h & 0x7fffffff) % segments.length];
+  }
+
+  /**
+   * Returns the stem of word, using the given stemmer if it is not cached.
+   */
+  public String stem(String word, PorterStemmer stemmer) {
+    int hash = word.hashCode();
+    Segment segment = segmentFor(hash);
+    String stem;
+    synchronized (segment) {
+      stem = segment.get(hash, word, null, 0, 0);
+    }
+    if (stem != null) {
+      hits.incrementAndGet();
+      return stem;
+    }
+    misses.incrementAndGet();
+    stem = stemmer.stem(word);
+    synchronized (segment) {
+      segment.put(word, hash, stem);
+    }
+    return stem;
+  }
+
+  /**
+   * Returns the stem of the word held in w[off] up to w[off+len-1].  A hit
+   * allocates nothing; a miss stems the word from the buffer and only
+   * builds the Strings it caches.
+   */
+  public String stem(char[] w, int off, int len, PorterStemmer stemmer) {
+    int hash = 0;
+    for (int i = off; i < off + len; i++)
+      hash = 31 * hash + w[i];
+    Segment segment = segmentFor(hash);
+    String stem;
+    synchronized (segment) {
+      stem = segment.get(hash, null, w, off, len);
+    }
+    if (stem != null) {
+      hits.incrementAndGet();
+      return stem;
+    }
+    misses.incrementAndGet();
+    stemmer.stem(w, off, len);
+    stem = new String(stemmer.getResultBuffer(), 0, stemmer.getResultLength());
+    synchronized (segment) {
+      segment.put(new String(w, off, len), hash, stem);
+    }
+    return stem;
+  }
+
+  public long hits() {
+    return hits.get();
+  }
+
+  public long misses() {
+    return misses.get();
+  }
+
+  public long evictions() {
+    return evictions.get();
+  }
+
+  /**
+   * Fraction of lookups that were hits, 0 if there were none.
+   */
+  public double hitRate() {
+    long h = hits.get();
+    long total = h + misses.get();
+    return total == 0 ? 0.0 : (double) h / total;
+  }
+
+  /**
+   * Number of words currently cached.
+   */
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        size += segment.size;
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Empties the cache and resets the counters.
+   */
+  public void clear() {
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        segment.clear();
+      }
+    }
+    hits.set(0);
+    misses.set(0);
+    evictions.set(0);
+  }
+
+  public String toString() {
+    return "size " + size() + "/" + maxSize + ", hits " + hits() + ", misses " + misses() +
+        ", evictions " + evictions() + ", hit rate " + String.format("%.3f", hitRate());
+  }
+
+  public static void main(String[] args) {
+    StemCache cache = new StemCache(4);
+    PorterStemmer stemmer = new PorterStemmer();
+    String[] words = {"running", "runs", "running", "cats", "ponies", "running", "caresses", "cats"};
+    for (String word : words) {
+      System.out.println(word + " -> " + cache.stem(word, stemmer));
+    }
+    char[] text = "the ponies running".toCharArray();
+    System.out.println("ponies in a buffer -> " + cache.stem(text, 4, 6, stemmer));
+    System.out.println(cache);
+  }
+}
@@ -0,0 +1,141 @@
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Maps every term of the corpus to a dense int id in [0, size()).  Ids follow
+ * the sorted order of the terms.  The terms themselves are packed back to
+ * back as UTF-8 bytes into one buffer, with a buffer of start offsets, so
+ * the dictionary costs two arrays instead of a String and a map entry per
+ * term.  Looking a term up is a binary search over the packed bytes.  The
+ * buffers may be slices of a memory-mapped index file.
+ */
+public class TermDictionary {
+  static final Charset UTF8 = Charset.forName("UTF-8");
+
+  ByteBuffer bytes;
+  IntBuffer offsets;  // term i is bytes[offsets[i]] up to bytes[offsets[i+1]]
+
+  TermDictionary(ByteBuffer bytes, IntBuffer offsets) {
+    this.bytes = bytes;
+    this.offsets = offsets;
+  }
+
+  /**
+   * Compares UTF-8 byte strings as unsigned bytes, which orders them the same
+   * way as their code points.
+   */
+  static final Comparator<byte[]> BYTE_ORDER = new Comparator<byte[]>() {
+    public int compare(byte[] a, byte[] b) {
+      int n = Math.min(a.length, b.length);
+      for (int i = 0; i < n; i++) {
+        int diff = (a[i] & 0xff) - (b[i] & 0xff);
+        if (diff != 0)
+          return diff;
+      }
+      return a.length - b.length;
+    }
+  };
+
+  /**
+   * Builds a dictionary over the given terms.  Duplicates are dropped.
+   */
+  public TermDictionary(Collection<String> terms) {
+    List<byte[]> encoded = new ArrayList<byte[]>(terms.size());
+    for (String term : terms) {
+      encoded.add(term.getBytes(UTF8));
+    }
+    Collections.sort(encoded, BYTE_ORDER);
+
+    int total = 0;
+    for (byte[] term : encoded) {
+      total += term.length;
+    }
+    byte[] bytes = new byte[total];
+    int[] offsets = new int[encoded.size() + 1];
+    int size = 0;
+    int pos = 0;
+    byte[] previous = null;
+    for (byte[] term : encoded) {
+      if (previous != null && BYTE_ORDER.compare(previous, term) == 0)
+        continue;
+      previous = term;
+      System.arraycopy(term, 0, bytes, pos, term.length);
+      offsets[size++] = pos;
+      pos += term.length;
+    }
+    offsets[size] = pos;
+    this.bytes = ByteBuffer.wrap(bytes, 0, pos).slice();
+    this.offsets = IntBuffer.wrap(offsets, 0, size + 1).slice();
+  }
+
+  /**
+   * Compares the term with the given id to a UTF-8 encoded term.
+   */
+  protected int compare(int id, byte[] term) {
+    int start = offsets.get(id);
+    int length = offsets.get(id + 1) - start;
+    int n = Math.min(length, term.length);
+    for (int i = 0; i < n; i++) {
+      int diff = (bytes.get(start + i) & 0xff) - (term[i] & 0xff);
+      if (diff != 0)
+        return diff;
+    }
+    return length - term.length;
+  }
+
+  /**
+   * Returns the id of the term, or -1 if it is not in the dictionary.
+   */
+  public int lookup(String term) {
+    byte[] key = term.getBytes(UTF8);
+    int lo = 0;
+    int hi = size() - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int cmp = compare(mid, key);
+      if (cmp < 0)
+        lo = mid + 1;
+      else if (cmp > 0)
+        hi = mid - 1;
+      else
+        return mid;
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the term with the given id.
+   */
+  public String term(int id) {
+    int start = offsets.get(id);
+    byte[] term = new byte[offsets.get(id + 1) - start];
+    for (int i = 0; i < term.length; i++) {
+      term[i] = bytes.get(start + i);
+    }
+    return new String(term, UTF8);
+  }
+
+  /**
+   * The number of terms in the dictionary.
+   */
+  public int size() {
+    return offsets.limit() - 1;
+  }
+
+  public static void main(String[] args) {
+    List<String> terms = new ArrayList<String>();
+    Collections.addAll(terms, "scamper", "cat", "growl", "cat", "run");
+    TermDictionary dictionary = new TermDictionary(terms);
+    for (int id = 0; id < dictionary.size(); id++) {
+      System.out.println(id + " " + dictionary.term(id));
+    }
+    System.out.println("Id of growl: " + dictionary.lookup("growl"));
+    System.out.println("Id of dog: " + dictionary.lookup("dog"));
+  }
+}
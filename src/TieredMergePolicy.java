@@ -0,0 +1,70 @@
+import java.util.List;
+
+/**
+ * Decides which segments to merge.  Segments are grouped into tiers by their
+ * number of live documents: tier 0 holds segments of up to minDocs
+ * documents, and each tier above holds segments mergeFactor times larger
+ * than the one below.  When mergeFactor adjacent segments are in the same
+ * tier they are merged into one segment of the next tier.  The number of
+ * segments then grows with the logarithm of the size of the index, and each
+ * document is rewritten a logarithmic number of times.
+ *
+ * Only adjacent segments are merged, because the segments of an index are
+ * kept in document order.  A segment in which more than maxDeletedFraction
+ * of the documents are deleted is rewritten on its own, which drops them.
+ */
+public class TieredMergePolicy {
+  int mergeFactor;
+  int minDocs;
+  double maxDeletedFraction;
+
+  public TieredMergePolicy(int mergeFactor, int minDocs, double maxDeletedFraction) {
+    if (mergeFactor < 2)
+      throw new IllegalArgumentException("mergeFactor must be at least 2: " + mergeFactor);
+    this.mergeFactor = mergeFactor;
+    this.minDocs = Math.max(1, minDocs);
+    this.maxDeletedFraction = maxDeletedFraction;
+  }
+
+  /**
+   * The tier of a segment.
+   */
+  public int tier(Segment segment) {
+    int tier = 0;
+    long limit = minDocs;
+    while (segment.numLiveDocs() > limit) {
+      limit *= mergeFactor;
+      tier++;
+    }
+    return tier;
+  }
+
+  /**
+   * Returns the segments to merge next as the range {from, to} of indices
+   * into segments, or null if no merge is needed.  The smallest tier with
+   * enough adjacent segments is merged first.
+   */
+  public int[] findMerge(List<Segment> segments) {
+    int[] best = null;
+    int bestTier = Integer.MAX_VALUE;
+    int runStart = 0;
+    for (int i = 0; i < segments.size(); i++) {
+      int tier = tier(segments.get(i));
+      if (i > 0 && tier != tier(segments.get(i - 1)))
+        runStart = i;
+      if (i - runStart + 1 >= mergeFactor && tier < bestTier) {
+        best = new int[] {i - mergeFactor + 1, i + 1};
+        bestTier = tier;
+      }
+    }
+    if (best != null)
+      return best;
+
+    for (int i = 0; i < segments.size(); i++) {
+      Segment segment = segments.get(i);
+      if (segment.numDeleted > maxDeletedFraction * segment.numDocs())
+        return new int[] {i, i + 1};
+    }
+    return null;
+  }
+}
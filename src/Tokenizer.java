@@ -0,0 +1,113 @@
+/**
+ * Splits text into lowercase alphanumeric tokens in a single pass over its
+ * characters, without regular expressions.  Tokens are separated by
+ * whitespace (space, tab, newline, vertical tab, form feed, carriage
+ * return).  Within a token every character is lowercased and anything that
+ * is not an ASCII letter or digit is dropped, so "Don't" becomes "dont"; a
+ * token with nothing left is skipped.  This is what toLowerCase(), then
+ * split("\\s+"), then replaceAll("[^a-zA-Z0-9]", "") used to do, except
+ * that lowercasing does not depend on the default locale.
+ *
+ * The current token is exposed as a slice of a reused char[] (see buffer()
+ * and length()), so that it can be handed to the stemmer without creating a
+ * String.  Used for documents and queries alike, so both are tokenized the
+ * same way.
+ */
+public class Tokenizer {
+  // FOLD[c] is the lowercase form of ASCII letter or digit c, 0 for any
+  // other ASCII character
+  static final char[] FOLD = new char[128];
+  static {
+    for (char c = '0'; c <= '9'; c++)
+      FOLD[c] = c;
+    for (char c = 'a'; c <= 'z'; c++)
+      FOLD[c] = c;
+    for (char c = 'A'; c <= 'Z'; c++)
+      FOLD[c] = (char) (c - 'A' + 'a');
+  }
+
+  CharSequence text;
+  int pos;
+  char[] buffer = new char[32];
+  int length;
+
+  /**
+   * Starts tokenizing the given text.
+   */
+  public void reset(CharSequence text) {
+    this.text = text;
+    this.pos = 0;
+    this.length = 0;
+  }
+
+  static boolean isWhitespace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+  }
+
+  /**
+   * Lowercase ASCII letter or digit for c, or 0 if c is dropped.  Characters
+   * outside ASCII are kept only if they lowercase to an ASCII letter, such as
+   * the Kelvin sign.
+   */
+  static char fold(char c) {
+    if (c < 128)
+      return FOLD[c];
+    char lower = Character.toLowerCase(c);
+    return lower < 128 ? FOLD[lower] : 0;
+  }
+
+  /**
+   * Moves to the next token.  Returns false when the text is exhausted.
+   */
+  public boolean next() {
+    int n = text.length();
+    while (pos < n) {
+      while (pos < n && isWhitespace(text.charAt(pos))) {
+        pos++;
+      }
+      length = 0;
+      while (pos < n) {
+        char c = text.charAt(pos);
+        if (isWhitespace(c))
+          break;
+        char folded = fold(c);
+        if (folded != 0) {
+          if (length == buffer.length) {
+            char[] newBuffer = new char[2 * length];
+            System.arraycopy(buffer, 0, newBuffer, 0, length);
+            buffer = newBuffer;
+          }
+          buffer[length++] = folded;
+        }
+        pos++;
+      }
+      if (length > 0)
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * The characters of the current token are buffer()[0] up to
+   * buffer()[length() - 1].  The buffer is reused by the next call to
+   * next().
+   */
+  public char[] buffer() {
+    return buffer;
+  }
+
+  /**
+   * The length of the current token.
+   */
+  public int length() {
+    return length;
+  }
+
+  public static void main(String[] args) {
+    Tokenizer tokenizer = new Tokenizer();
+    tokenizer.reset("  The Cat's   hat,\tcost $4.50 -- Kelvin!");
+    while (tokenizer.next()) {
+      System.out.println(new String(tokenizer.buffer(), 0, tokenizer.length()));
+    }
+  }
+}
@@ -0,0 +1,210 @@
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Keeps the k highest scoring documents seen so far.  Documents are held in a
+ * bounded binary min-heap of primitive (doc, score) pairs, so adding a
+ * document costs O(log k) and allocates nothing; a document that scores no
+ * better than the current k-th best is rejected in O(1).  Ties on score are
+ * broken in favour of the lower document index, which makes the result
+ * independent of the order documents are added in.
+ *
+ * Once results are read with doc(rank)/score(rank) the heap is sorted in
+ * place and no more documents can be added.
+ */
+public class TopDocs {
+  int k;
+  int size;
+  int[] docs;
+  double[] scores;
+  boolean sorted;
+  long postingsDecoded;  // by the search that collected the documents
+
+  public TopDocs(int k) {
+    if (k < 0)
+      throw new IllegalArgumentException("k must be non-negative: " + k);
+    this.k = k;
+    int capacity = Math.min(k, 16);
+    docs = new int[capacity];
+    scores = new double[capacity];
+  }
+
+  /**
+   * True if (doc1, score1) ranks below (doc2, score2).
+   */
+  static boolean lessThan(int doc1, double score1, int doc2, double score2) {
+    if (score1 != score2)
+      return score1 < score2;
+    return doc1 > doc2;
+  }
+
+  protected void grow() {
+    int newCapacity = Math.min(k, 2 * docs.length + 1);
+    docs = Arrays.copyOf(docs, newCapacity);
+    scores = Arrays.copyOf(scores, newCapacity);
+  }
+
+  protected void heapifyUp(int loc) {
+    int doc = docs[loc];
+    double score = scores[loc];
+    while (loc > 0) {
+      int parent = (loc - 1) / 2;
+      if (!lessThan(doc, score, docs[parent], scores[parent]))
+        break;
+      docs[loc] = docs[parent];
+      scores[loc] = scores[parent];
+      loc = parent;
+    }
+    docs[loc] = doc;
+    scores[loc] = score;
+  }
+
+  protected void heapifyDown(int loc, int end) {
+    int doc = docs[loc];
+    double score = scores[loc];
+    while (true) {
+      int child = 2 * loc + 1;
+      if (child >= end)
+        break;
+      if (child + 1 < end && lessThan(docs[child + 1], scores[child + 1], docs[child], scores[child]))
+        child++;
+      if (!lessThan(docs[child], scores[child], doc, score))
+        break;
+      docs[loc] = docs[child];
+      scores[loc] = scores[child];
+      loc = child;
+    }
+    docs[loc] = doc;
+    scores[loc] = score;
+  }
+
+  /**
+   * Offers a document with the given score.  Returns true if it is (for
+   * now) among the top k.
+   */
+  public boolean add(int doc, double score) {
+    if (sorted)
+      throw new IllegalStateException("results have already been read");
+    if (size < k) {
+      if (size == docs.length)
+        grow();
+      docs[size] = doc;
+      scores[size] = score;
+      heapifyUp(size);
+      size++;
+      return true;
+    }
+    if (k == 0 || !lessThan(docs[0], scores[0], doc, score))
+      return false;
+    docs[0] = doc;
+    scores[0] = score;
+    heapifyDown(0, size);
+    return true;
+  }
+
+  /**
+   * True once k documents have been collected.
+   */
+  public boolean isFull() {
+    return size == k;
+  }
+
+  /**
+   * The score a new document has to beat to get into the top k, or negative
+   * infinity while fewer than k documents have been collected.
+   */
+  public double minScore() {
+    if (!isFull() || k == 0)
+      return Double.NEGATIVE_INFINITY;
+    return scores[0];
+  }
+
+  /**
+   * Number of postings the search decoded to collect the documents, a
+   * measure of its cost.
+   */
+  public long postingsDecoded() {
+    return postingsDecoded;
+  }
+
+  /**
+   * Number of documents collected (at most k).
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Sorts the heap into decreasing score order, in place.
+   */
+  protected void sort() {
+    if (sorted)
+      return;
+    for (int end = size - 1; end > 0; end--) {
+      int doc = docs[0];
+      double score = scores[0];
+      docs[0] = docs[end];
+      scores[0] = scores[end];
+      docs[end] = doc;
+      scores[end] = score;
+      heapifyDown(0, end);
+    }
+    sorted = true;
+  }
+
+  /**
+   * The document at the given rank, 0 being the best.
+   */
+  public int doc(int rank) {
+    if (rank < 0 || rank >= size)
+      throw new NoSuchElementException();
+    sort();
+    return docs[rank];
+  }
+
+  /**
+   * The score of the document at the given rank, 0 being the best.
+   */
+  public double score(int rank) {
+    if (rank < 0 || rank >= size)
+      throw new NoSuchElementException();
+    sort();
+    return scores[rank];
+  }
+
+  /**
+   * Builds a priority queue whose elements are the collected documents and
+   * whose priorities are their scores.
+   */
+  public PriorityQueue<Integer> asPriorityQueue() {
+    PriorityQueue<Integer> pq = new PriorityQueue<Integer>(size);
+    for (int i = 0; i < size; i++) {
+      pq.add(docs[i], scores[i]);
+    }
+    return pq;
+  }
+
+  public String toString() {
+    sort();
+    StringBuilder sb = new StringBuilder("[");
+    for (int i = 0; i < size; i++) {
+      if (i > 0)
+        sb.append(", ");
+      sb.append(docs[i]);
+      sb.append(" : ");
+      sb.append(scores[i]);
+    }
+    sb.append("]");
+    return sb.toString();
+  }
+
+  public static void main(String[] args) {
+    TopDocs top = new TopDocs(3);
+    double[] scores = {0.5, 0.1, 0.9, 0.3, 0.9, 0.7};
+    for (int d = 0; d < scores.length; d++) {
+      top.add(d, scores[d]);
+      System.out.println("after doc " + d + ", min score " + top.minScore());
+    }
+    System.out.println(top);
+  }
+}